@@ -2,7 +2,8 @@ CREATE TABLE recetas (
 	id INTEGER NOT NULL AUTO_INCREMENT,
 	descripcion VARCHAR(50) NOT NULL,
 	foto VARCHAR(50),
-	CONSTRAINT pk_recetas PRIMARY KEY(id)
+	CONSTRAINT pk_recetas PRIMARY KEY(id),
+	FULLTEXT INDEX ft_recetas_descripcion (descripcion)
 );
 
 CREATE TABLE pasos_recetas (
@@ -10,7 +11,8 @@ CREATE TABLE pasos_recetas (
 	descripcion VARCHAR(100) NOT NULL,
 	receta INTEGER NOT NULL,
 	CONSTRAINT pk_pasos_recetas PRIMARY KEY(id),
-	CONSTRAINT fk_pasos_recetas_receta FOREIGN KEY (receta) REFERENCES recetas(id)
+	CONSTRAINT fk_pasos_recetas_receta FOREIGN KEY (receta) REFERENCES recetas(id),
+	FULLTEXT INDEX ft_pasos_recetas_descripcion (descripcion)
 );
 
 CREATE TABLE tipos (
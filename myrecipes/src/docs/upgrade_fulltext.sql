@@ -0,0 +1,6 @@
+-- Indices FULLTEXT de la busqueda de recetas para bases de datos creadas
+-- antes de incluirlos en model.sql. Con InnoDB requiere MySQL 5.6 o posterior.
+
+ALTER TABLE recetas ADD FULLTEXT INDEX ft_recetas_descripcion (descripcion);
+
+ALTER TABLE pasos_recetas ADD FULLTEXT INDEX ft_pasos_recetas_descripcion (descripcion);
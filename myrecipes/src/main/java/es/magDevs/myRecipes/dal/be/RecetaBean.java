@@ -15,9 +15,16 @@
  */
 package es.magDevs.myRecipes.dal.be;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class RecetaBean extends BasicBean {
 	private String descripcion;
 	private String foto;
+	// Solo se rellenan al obtener la receta completa
+	private List<PasoRecetaBean> pasos;
+	private List<IngredienteRecetaBean> ingredientes;
+	private List<TipoRecetaBean> tipos;
 	
 	public RecetaBean() {
 	}
@@ -25,6 +32,9 @@ public class RecetaBean extends BasicBean {
 	public RecetaBean(RecetaBean obj) {
 		this.descripcion = obj.descripcion;
 		this.foto = obj.foto;
+		this.pasos = obj.pasos == null ? null : new ArrayList<>(obj.pasos);
+		this.ingredientes = obj.ingredientes == null ? null : new ArrayList<>(obj.ingredientes);
+		this.tipos = obj.tipos == null ? null : new ArrayList<>(obj.tipos);
 	}
 	
 	@Override
@@ -47,4 +57,28 @@ public class RecetaBean extends BasicBean {
 	public void setFoto(String foto) {
 		this.foto = foto;
 	}
+
+	public List<PasoRecetaBean> getPasos() {
+		return pasos;
+	}
+
+	public void setPasos(List<PasoRecetaBean> pasos) {
+		this.pasos = pasos;
+	}
+
+	public List<IngredienteRecetaBean> getIngredientes() {
+		return ingredientes;
+	}
+
+	public void setIngredientes(List<IngredienteRecetaBean> ingredientes) {
+		this.ingredientes = ingredientes;
+	}
+
+	public List<TipoRecetaBean> getTipos() {
+		return tipos;
+	}
+
+	public void setTipos(List<TipoRecetaBean> tipos) {
+		this.tipos = tipos;
+	}
 }
@@ -15,15 +15,28 @@
  */
 package es.magDevs.myRecipes.dal.bl;
 
+import java.util.concurrent.CompletableFuture;
+
 import es.magDevs.myRecipes.dal.dao.DAOFactory;
+import es.magDevs.myRecipes.dal.dao.Deadline;
+import es.magDevs.myRecipes.dal.dao.Propagacion;
+import es.magDevs.myRecipes.dal.dao.ReplicaRouter;
 
+/**
+ * Clase base de la logica de negocio. No guarda estado: cada operacion crea su
+ * propio {@link DAOFactory} con su propia conexion, y las operaciones del
+ * mismo hilo comparten la transaccion en curso a traves de la factoria. Por
+ * eso una misma instancia se puede usar a la vez desde varios hilos sin
+ * bloqueos.
+ * <p>
+ * Cada operacion tiene como plazo {@link Deadline#getPlazoDefecto()}, que se
+ * aplica como timeout a todas las sentencias que ejecuta; las operaciones
+ * anidadas comparten el plazo de la que las contiene.
+ * 
+ * @author javier.vaquero
+ *
+ */
 public class AbstractBL {
-
-	protected DAOFactory factory = null;
-	
-	public AbstractBL() {
-		factory = DAOFactory.getDAOFactory(DAOFactory.MYSQL);
-	}
 	
 	/**
 	 * Interfaz para usar un {@link DAOFactory} y no gestionar internamente conexiones ni transacciones.
@@ -44,17 +57,66 @@ public class AbstractBL {
 	}
 	
 	protected <T extends Object> T execute(DaoFactoryHandler<T> factoryHandler) throws Exception {
+		return execute(nuevaFactoria(), Deadline.getPlazoDefecto(), factoryHandler);
+	}
+	
+	/**
+	 * Igual que {@link #execute(DaoFactoryHandler)}, para lecturas que recorren
+	 * muchos datos, como exportaciones o informes. En lugar del plazo por
+	 * defecto tienen {@link Deadline#getPlazoRecorrido()}, sin limite salvo que
+	 * se configure, porque el tiempo incluye el procesado de cada tupla. Dentro
+	 * de otra operacion se mantiene el plazo de esta
+	 * 
+	 * @param factoryHandler
+	 *            acciones a ejecutar
+	 * @return resultado de las acciones
+	 */
+	protected <T extends Object> T executeStreaming(DaoFactoryHandler<T> factoryHandler) throws Exception {
+		return execute(nuevaFactoria(), Deadline.getPlazoRecorrido(), factoryHandler);
+	}
+	
+	/**
+	 * Crea la factoria de una operacion, anotando esta BL como su origen para
+	 * las metricas de conexiones
+	 * 
+	 * @return factoria nueva
+	 */
+	protected DAOFactory nuevaFactoria() {
+		DAOFactory factory = DAOFactory.getDAOFactory(DAOFactory.MYSQL);
+		factory.setOrigen(getClass().getSimpleName());
+		return factory;
+	}
+	
+	private static <T extends Object> T execute(DAOFactory factory, long millis, DaoFactoryHandler<T> factoryHandler) throws Exception {
+		// Las lecturas fuera de transaccion pueden ir a una replica
+		factory.setLectura(true);
+		Long plazo = Deadline.iniciar(millis);
 		try {
 			return factoryHandler.useFactory(factory);
 		} catch (Exception e) {
 			throw e;
 		} finally {
-			if (factory != null) {
-				factory.closeConnection();
-			}
+			factory.closeConnection();
+			factory.setLectura(false);
+			Deadline.restaurar(plazo);
 		}
 	}
 	
+	/**
+	 * Ejecuta las acciones en el {@link BLExecutor}, sin bloquear el hilo que
+	 * llama. Como cualquier operacion, usa su propio {@link DAOFactory} y su
+	 * propia conexion, por lo que se pueden lanzar varias a la vez. Si se quiere
+	 * actualizar la interfaz con el resultado se debe hacer con
+	 * <code>UI.access</code>
+	 * 
+	 * @param factoryHandler
+	 *            acciones a ejecutar
+	 * @return futuro con el resultado de las acciones
+	 */
+	protected <T extends Object> CompletableFuture<T> executeAsync(DaoFactoryHandler<T> factoryHandler) {
+		return BLExecutor.submit(() -> execute(factoryHandler));
+	}
+	
 	/**
 	 * Metodo para ejecutar accciones usando un {@link DAOFactory}, este metodo
 	 * proporciona una instancia ya inicializada con una transaccion abierta y se encarga de hacer un commit y cerrar
@@ -67,13 +129,117 @@ public class AbstractBL {
 	 *         excepcion (se hace un rollback)
 	 */
 	protected <T extends Object> T executeWithTransaction(DaoFactoryHandler<T> factoryHandler) throws Exception {
+		return executeWithTransaction(Propagacion.REQUIRED, factoryHandler);
+	}
+	
+	/**
+	 * Igual que {@link #executeWithTransaction(DaoFactoryHandler)}, indicando
+	 * que hacer si ya hay una transaccion abierta. Con
+	 * {@link Propagacion#NESTED} un fallo solo deshace los cambios de estas
+	 * acciones, por ejemplo para reintentar un elemento de un proceso por lotes
+	 * sin repetir los anteriores
+	 * 
+	 * @param propagacion
+	 *            comportamiento si hay una transaccion abierta en el hilo
+	 * @param factoryHandler
+	 *            acciones a ejecutar
+	 * @return resultado de las acciones
+	 */
+	protected <T extends Object> T executeWithTransaction(Propagacion propagacion, DaoFactoryHandler<T> factoryHandler) throws Exception {
+		return executeWithTransaction(nuevaFactoria(), propagacion, factoryHandler);
+	}
+	
+	/**
+	 * Ejecuta acciones de solo lectura en una transaccion de solo lectura con
+	 * una instantanea consistente (ver
+	 * {@link DAOFactory#beginReadOnlyTransaction()}). Pensado para lecturas de
+	 * varias consultas que deben ver los mismos datos, como una receta y sus
+	 * elementos; para una unica consulta es mas barato
+	 * {@link #execute(DaoFactoryHandler)}
+	 * 
+	 * @param factoryHandler
+	 *            acciones a ejecutar, no pueden escribir
+	 * @return resultado de las acciones
+	 */
+	protected <T extends Object> T executeReadOnly(DaoFactoryHandler<T> factoryHandler) throws Exception {
+		DAOFactory factory = nuevaFactoria();
+		Long plazo = Deadline.iniciarDefecto();
+		try {
+			if (!factory.beginReadOnlyTransaction()) {
+				throw new Exception("No se ha podido inicar transaccion de solo lectura");
+			}
+			T result = factoryHandler.useFactory(factory);
+			// Solo termina la instantanea, no hay cambios que confirmar
+			factory.commit();
+			return result;
+		} catch (Exception e) {
+			factory.rollback();
+			throw e;
+		} finally {
+			factory.closeConnection();
+			Deadline.restaurar(plazo);
+		}
+	}
+	
+	/**
+	 * Igual que {@link #executeWithTransaction(DaoFactoryHandler)}, pero si la
+	 * transaccion falla por un interbloqueo o una espera de bloqueo agotada se
+	 * repite segun {@link RetryPolicy}. Las acciones deben poder repetirse sin
+	 * efectos fuera de la base de datos. Dentro de otra transaccion no se
+	 * reintenta, porque el error la deshace entera y la debe repetir quien la
+	 * inicio. Todos los intentos comparten el mismo plazo
+	 * 
+	 * @param factoryHandler
+	 *            acciones a ejecutar
+	 * @return resultado de las acciones
+	 */
+	protected <T extends Object> T executeWithRetry(DaoFactoryHandler<T> factoryHandler) throws Exception {
+		if (DAOFactory.getProfundidad() > 0) {
+			return executeWithTransaction(factoryHandler);
+		}
+		Long plazo = Deadline.iniciarDefecto();
+		try {
+			return RetryPolicy.ejecutar(() -> executeWithTransaction(factoryHandler));
+		} finally {
+			Deadline.restaurar(plazo);
+		}
+	}
+	
+	/**
+	 * Version asincrona de {@link #executeWithRetry(DaoFactoryHandler)}
+	 * 
+	 * @param factoryHandler
+	 *            acciones a ejecutar
+	 * @return futuro con el resultado de las acciones
+	 */
+	protected <T extends Object> CompletableFuture<T> executeWithRetryAsync(DaoFactoryHandler<T> factoryHandler) {
+		return BLExecutor.submit(() -> executeWithRetry(factoryHandler));
+	}
+	
+	/**
+	 * Ejecuta las acciones en una transaccion en el {@link BLExecutor}, sin
+	 * bloquear el hilo que llama, con su propio {@link DAOFactory} y su propia
+	 * conexion
+	 * 
+	 * @param factoryHandler
+	 *            acciones a ejecutar
+	 * @return futuro con el resultado de las acciones
+	 */
+	protected <T extends Object> CompletableFuture<T> executeWithTransactionAsync(DaoFactoryHandler<T> factoryHandler) {
+		return BLExecutor.submit(() -> executeWithTransaction(factoryHandler));
+	}
+	
+	private static <T extends Object> T executeWithTransaction(DAOFactory factory, Propagacion propagacion, DaoFactoryHandler<T> factoryHandler) throws Exception {
 		DAOFactory daoFactory = null;
+		Long plazo = Deadline.iniciarDefecto();
 
 		try {
 			daoFactory = factory;
-			if (daoFactory.beginTransaction()) {
+			if (daoFactory.beginTransaction(propagacion)) {
 				T result = factoryHandler.useFactory(daoFactory);
 				if(daoFactory.commit()) {
+					// Las siguientes lecturas de la sesion deben ver estos cambios
+					ReplicaRouter.registrarEscritura();
 					return result;
 				} else {
 					throw new Exception("No se ha podido hacer commit");
@@ -88,6 +254,7 @@ public class AbstractBL {
 			if (factory != null) {
 				factory.closeConnection();
 			}
+			Deadline.restaurar(plazo);
 		}
 	}
 	
@@ -0,0 +1,179 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.bl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import es.magDevs.myRecipes.dal.dao.Deadline;
+import es.magDevs.myRecipes.dal.dao.LatencyHistogram;
+import es.magDevs.myRecipes.dal.dao.ReplicaRouter;
+
+/**
+ * Ejecutor de las operaciones asincronas de la capa de negocio. Tiene un
+ * numero fijo de hilos y una cola acotada: si la cola esta llena la operacion
+ * no se encola y su {@link CompletableFuture} termina con una
+ * {@link RejectedExecutionException}, para no acumular peticiones cuando la
+ * base de datos no da abasto. Se miden el tiempo de espera en cola y el de
+ * ejecucion de cada operacion.
+ *
+ * @author javier.vaquero
+ *
+ */
+public class BLExecutor {
+
+	/**
+	 * Numero de hilos del ejecutor
+	 */
+	public static final int NUM_HILOS = 4;
+
+	/**
+	 * Numero maximo de operaciones esperando en cola
+	 */
+	public static final int TAMANO_COLA = 100;
+
+	/**
+	 * Milisegundos que se espera a las operaciones en curso al parar
+	 */
+	public static final long ESPERA_PARADA = 5000;
+
+	private static final AtomicLong rechazadas = new AtomicLong();
+	private static final LatencyHistogram tiemposEspera = new LatencyHistogram();
+	private static final LatencyHistogram tiemposEjecucion = new LatencyHistogram();
+
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(NUM_HILOS, NUM_HILOS, 60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<>(TAMANO_COLA), new ThreadFactory() {
+				private final AtomicInteger numHilo = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread hilo = new Thread(r, "myrecipes-bl-" + numHilo.incrementAndGet());
+					hilo.setDaemon(true);
+					return hilo;
+				}
+			});
+
+	static {
+		// Los hilos se liberan si no hay trabajo
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Ejecuta la operacion en el ejecutor
+	 *
+	 * @param operacion operacion a ejecutar, debe gestionar sus propias
+	 *                  conexiones
+	 * @return futuro con el resultado de la operacion, o con la excepcion que
+	 *         haya lanzado
+	 */
+	static <T> CompletableFuture<T> submit(Callable<T> operacion) {
+		CompletableFuture<T> futuro = new CompletableFuture<>();
+		long encolada = System.nanoTime();
+		// La operacion se ejecuta en nombre de la sesion que la lanza
+		String sesion = ReplicaRouter.getSesion();
+		// y con el plazo que le quede, si se lanza desde otra operacion
+		Long plazo = Deadline.get();
+		try {
+			executor.execute(() -> {
+				long inicio = System.nanoTime();
+				tiemposEspera.registrar(inicio - encolada);
+				ReplicaRouter.setSesion(sesion);
+				Deadline.set(plazo);
+				try {
+					futuro.complete(operacion.call());
+				} catch (Throwable e) {
+					futuro.completeExceptionally(e);
+				} finally {
+					ReplicaRouter.setSesion(null);
+					Deadline.set(null);
+					tiemposEjecucion.registrar(System.nanoTime() - inicio);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rechazadas.incrementAndGet();
+			futuro.completeExceptionally(e);
+		}
+		return futuro;
+	}
+
+	/**
+	 * Para el ejecutor al parar la aplicacion. Las operaciones en curso tienen
+	 * {@link #ESPERA_PARADA} milisegundos para terminar, despues se
+	 * interrumpen; las que se lancen despues se rechazan
+	 */
+	public static void detener() {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(ESPERA_PARADA, TimeUnit.MILLISECONDS)) {
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return numero de operaciones esperando en cola
+	 */
+	public static int getEnCola() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * @return numero de operaciones ejecutandose
+	 */
+	public static int getActivas() {
+		return executor.getActiveCount();
+	}
+
+	/**
+	 * @return numero de operaciones terminadas
+	 */
+	public static long getCompletadas() {
+		return executor.getCompletedTaskCount();
+	}
+
+	/**
+	 * @return numero de operaciones rechazadas por tener la cola llena
+	 */
+	public static long getRechazadas() {
+		return rechazadas.get();
+	}
+
+	/**
+	 * @return histograma del tiempo en cola de las operaciones, en
+	 *         microsegundos
+	 */
+	public static LatencyHistogram getTiemposEspera() {
+		return tiemposEspera;
+	}
+
+	/**
+	 * @return histograma del tiempo de ejecucion de las operaciones, en
+	 *         microsegundos
+	 */
+	public static LatencyHistogram getTiemposEjecucion() {
+		return tiemposEjecucion;
+	}
+}
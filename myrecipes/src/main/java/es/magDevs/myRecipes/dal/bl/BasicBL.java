@@ -15,11 +15,16 @@
  */
 package es.magDevs.myRecipes.dal.bl;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import es.magDevs.myRecipes.dal.be.BasicBean;
 import es.magDevs.myRecipes.dal.dao.BasicDAO;
+import es.magDevs.myRecipes.dal.dao.AbstractDAO.RowConsumer;
 import es.magDevs.myRecipes.dal.dao.DAOFactory;
+import es.magDevs.myRecipes.dal.dao.Deadline;
 
 public abstract class BasicBL<BEAN extends BasicBean> extends AbstractBL {
 	
@@ -31,28 +36,174 @@ public abstract class BasicBL<BEAN extends BasicBean> extends AbstractBL {
 		return execute(factory -> getDao(factory).getList());
 	}
 
+	/**
+	 * Recorre todos los beans que cumplen el filtro sin cargarlos en memoria.
+	 * Pensado para exportaciones o informes sobre muchos datos, por eso no
+	 * tiene el plazo por defecto de las operaciones sino
+	 * {@link Deadline#getPlazoRecorrido()}.
+	 * 
+	 * @param filtro   bean con los datos por los que filtrar
+	 * @param consumer consumidor de cada bean, no debe acceder a base de datos
+	 */
+	public void forEach(BEAN filtro, RowConsumer<BEAN> consumer) throws Exception {
+		executeStreaming(factory -> {
+			getDao(factory).forEach(filtro, consumer);
+			return true;
+		});
+	}
+
+	/**
+	 * Obtiene una pagina de beans ordenados por ID a partir del ultimo ID de la
+	 * pagina anterior
+	 * 
+	 * @param filtro  bean con los datos por los que filtrar
+	 * @param afterId ultimo ID de la pagina anterior, <code>null</code> para la
+	 *                primera pagina
+	 * @param size    numero maximo de beans de la pagina
+	 * @return beans de la pagina
+	 */
+	public List<BEAN> getPage(BEAN filtro, Long afterId, int size) throws Exception {
+		return execute(factory -> getDao(factory).getPage(filtro, afterId, size));
+	}
+
+	/**
+	 * Obtiene un rango de beans por posicion
+	 * 
+	 * @param filtro bean con los datos por los que filtrar
+	 * @param offset numero de beans a saltar, empezando en 0
+	 * @param size   numero maximo de beans a obtener
+	 * @return beans del rango
+	 */
+	public List<BEAN> getRange(BEAN filtro, int offset, int size) throws Exception {
+		return execute(factory -> getDao(factory).getRange(filtro, offset, size));
+	}
+
+	/**
+	 * Cuenta los beans que cumplen el filtro, sin obtenerlos
+	 * 
+	 * @param filtro bean con los datos por los que filtrar
+	 * @return numero de beans que cumplen el filtro
+	 */
+	public int count(BEAN filtro) throws Exception {
+		return execute(factory -> getDao(factory).count(filtro));
+	}
+
 	public void borrar(Long id) throws Exception {
-		executeWithTransaction(factory -> {
+		executeWithRetry(factory -> {
 			getDao(factory).borrar(id);
 			return true;
 		});
 	}
 
+	/**
+	 * Guarda el bean en una unica sentencia: lo inserta si no tiene ID o no
+	 * existe, si no lo actualiza. Si el bean es nuevo se le asigna el ID
+	 * generado
+	 * 
+	 * @param bean bean a guardar
+	 */
 	public void guardar(BEAN bean) throws Exception {
-		executeWithTransaction(factory -> {
-			Long id = bean.getId();
-			if(id == null) {
-				id = getDao(factory).insert(bean);
+		Long id = executeWithRetry(factory -> getDao(factory).upsert(bean));
+		// Solo se asigna el ID una vez confirmada la transaccion
+		bean.setId(id);
+	}
+
+	/**
+	 * Guarda todos los beans indicados en una unica transaccion: los que no
+	 * tienen ID se insertan por lotes y se les asigna el ID generado, el resto
+	 * se insertan o actualizan por lotes segun existan, sin consultarlos antes.
+	 * 
+	 * @param beans beans a guardar
+	 */
+	public void guardarTodos(List<BEAN> beans) throws Exception {
+		List<BEAN> nuevos = new ArrayList<>();
+		List<BEAN> existentes = new ArrayList<>();
+		for (BEAN bean : beans) {
+			if (bean.getId() == null) {
+				nuevos.add(bean);
 			} else {
-				getDao(factory).update(bean);
+				existentes.add(bean);
 			}
-			return true;
+		}
+		List<Long> ids = executeWithRetry(factory -> {
+			BasicDAO<BEAN> dao = getDao(factory);
+			List<Long> generados = dao.insertAll(nuevos);
+			dao.upsertAll(existentes);
+			return generados;
 		});
+		// Solo se asignan los IDs una vez confirmada la transaccion
+		for (int i = 0; i < nuevos.size(); i++) {
+			nuevos.get(i).setId(ids.get(i));
+		}
 	}
 
 	public BEAN getById(Long id) throws Exception {
 		return execute(factory -> getDao(factory).getById(id));
 	}
 
+	/**
+	 * Obtiene los beans con los IDs indicados en pocas consultas. Si hacen
+	 * falta varias, todas ven los mismos datos
+	 * 
+	 * @param ids IDs de los beans
+	 * @return beans encontrados, sin un orden determinado
+	 */
+	public List<BEAN> getByIds(Collection<Long> ids) throws Exception {
+		return executeReadOnly(factory -> getDao(factory).getByIds(ids));
+	}
+
+	/**
+	 * Version asincrona de {@link #getList(BasicBean)}
+	 * 
+	 * @param filtro bean con los datos por los que filtrar
+	 * @return futuro con los beans obtenidos
+	 */
+	public CompletableFuture<List<BEAN>> getListAsync(BEAN filtro) {
+		return executeAsync(factory -> getDao(factory).getList(filtro));
+	}
+
+	/**
+	 * Version asincrona de {@link #getList()}
+	 * 
+	 * @return futuro con todos los beans
+	 */
+	public CompletableFuture<List<BEAN>> getListAsync() {
+		return executeAsync(factory -> getDao(factory).getList());
+	}
+
+	/**
+	 * Version asincrona de {@link #getById(Long)}
+	 * 
+	 * @param id ID del bean
+	 * @return futuro con el bean o <code>null</code> si no existe
+	 */
+	public CompletableFuture<BEAN> getByIdAsync(Long id) {
+		return executeAsync(factory -> getDao(factory).getById(id));
+	}
+
+	/**
+	 * Version asincrona de {@link #guardar(BasicBean)}. Si el bean es nuevo se
+	 * le asigna el ID generado antes de completar el futuro
+	 * 
+	 * @param bean bean a guardar
+	 * @return futuro que se completa al confirmar la transaccion
+	 */
+	public CompletableFuture<Void> guardarAsync(BEAN bean) {
+		return executeWithRetryAsync(factory -> getDao(factory).upsert(bean)).thenAccept(bean::setId);
+	}
+
+	/**
+	 * Version asincrona de {@link #borrar(Long)}
+	 * 
+	 * @param id ID del bean a borrar
+	 * @return futuro que se completa al confirmar la transaccion
+	 */
+	public CompletableFuture<Void> borrarAsync(Long id) {
+		return this.<Void>executeWithRetryAsync(factory -> {
+			getDao(factory).borrar(id);
+			return null;
+		});
+	}
+
 	protected abstract BasicDAO<BEAN> getDao(DAOFactory daoFactory) throws Exception;
 }
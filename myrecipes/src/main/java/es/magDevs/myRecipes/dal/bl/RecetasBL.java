@@ -15,15 +15,61 @@
  */
 package es.magDevs.myRecipes.dal.bl;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
 import es.magDevs.myRecipes.dal.be.RecetaBean;
-import es.magDevs.myRecipes.dal.dao.BasicDAO;
 import es.magDevs.myRecipes.dal.dao.DAOFactory;
+import es.magDevs.myRecipes.dal.dao.RecetasDAO;
 
 public class RecetasBL extends BasicBL<RecetaBean> {
 
+	/**
+	 * Numero maximo de recetas devueltas en las busquedas por texto
+	 */
+	public static final int MAX_RESULTADOS_BUSQUEDA = 100;
+
+	private static final RecetasBL instance = new RecetasBL();
+
+	/**
+	 * Obtiene la instancia de la BL de recetas. No tiene estado, asi que se
+	 * puede compartir entre todas las sesiones
+	 * 
+	 * @return instancia de la BL
+	 */
+	public static RecetasBL getInstance() {
+		return instance;
+	}
+
 	@Override
-	protected BasicDAO<RecetaBean> getDao(DAOFactory daoFactory) throws Exception {
+	protected RecetasDAO getDao(DAOFactory daoFactory) throws Exception {
 		return daoFactory.getRecetasDao();
 	}
 
+	/**
+	 * Obtiene una receta con sus pasos, ingredientes y tipos
+	 * 
+	 * @param id ID de la receta
+	 * @return receta completa o <code>null</code> si no existe
+	 */
+	public RecetaBean getRecetaCompleta(Long id) throws Exception {
+		return execute(factory -> getDao(factory).getRecetaCompleta(id));
+	}
+
+	/**
+	 * Busca recetas por texto en su descripcion y en la de sus pasos
+	 * 
+	 * @param texto texto a buscar
+	 * @return como mucho {@link #MAX_RESULTADOS_BUSQUEDA} recetas, de mayor a
+	 *         menor relevancia
+	 */
+	public List<RecetaBean> search(String texto) throws Exception {
+		if (StringUtils.isBlank(texto)) {
+			return new ArrayList<>();
+		}
+		return execute(factory -> getDao(factory).search(texto, MAX_RESULTADOS_BUSQUEDA));
+	}
+
 }
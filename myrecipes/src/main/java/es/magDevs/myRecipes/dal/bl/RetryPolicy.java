@@ -0,0 +1,229 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.bl;
+
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.magDevs.myRecipes.dal.dao.Deadline;
+
+/**
+ * Politica de reintentos de las transacciones que fallan por errores
+ * transitorios de MySQL (interbloqueos y esperas de bloqueo agotadas), que
+ * suelen funcionar al repetirlas. Entre intentos se espera un tiempo aleatorio
+ * que crece exponencialmente, para que las transacciones en conflicto no
+ * vuelvan a chocar. Para no multiplicar la carga cuando la base de datos esta
+ * saturada, los reintentos consumen un presupuesto que solo se recupera con
+ * las operaciones que terminan bien.
+ *
+ * @author javier.vaquero
+ *
+ */
+public class RetryPolicy {
+
+	final static Logger log = LoggerFactory.getLogger(RetryPolicy.class);
+
+	/**
+	 * Numero maximo de intentos por defecto, incluido el primero
+	 */
+	public static final int MAX_INTENTOS_DEFECTO = 3;
+
+	/**
+	 * Milisegundos de espera base antes del primer reintento
+	 */
+	public static final long ESPERA_BASE = 50;
+
+	/**
+	 * Milisegundos de espera maxima entre reintentos
+	 */
+	public static final long ESPERA_MAXIMA = 2000;
+
+	// SQLState de los errores de serializacion, incluidos los interbloqueos
+	private static final String ESTADO_SERIALIZACION = "40001";
+	// Codigos de error de MySQL: interbloqueo y espera de bloqueo agotada
+	private static final int ER_LOCK_DEADLOCK = 1213;
+	private static final int ER_LOCK_WAIT_TIMEOUT = 1205;
+
+	// Presupuesto en decimas de reintento: cada operacion correcta suma 1 y cada reintento cuesta 10
+	private static final int COSTE_REINTENTO = 10;
+	private static final int MAX_PRESUPUESTO = 100 * COSTE_REINTENTO;
+	private static final AtomicInteger presupuesto = new AtomicInteger(MAX_PRESUPUESTO);
+
+	private static volatile int maxIntentos = MAX_INTENTOS_DEFECTO;
+
+	private static final AtomicLong reintentos = new AtomicLong();
+	private static final AtomicLong recuperadas = new AtomicLong();
+	private static final AtomicLong agotadas = new AtomicLong();
+	private static final AtomicLong sinPresupuesto = new AtomicLong();
+
+	/**
+	 * Ejecuta la operacion reintentandola si falla por un error transitorio.
+	 * La operacion debe poder repetirse: su transaccion se ha deshecho entera
+	 * y no debe tener efectos fuera de la base de datos
+	 *
+	 * @param operacion operacion a ejecutar
+	 * @return resultado de la operacion
+	 * @throws Exception error de la operacion si no es transitorio o no quedan
+	 *                   intentos
+	 */
+	static <T> T ejecutar(Callable<T> operacion) throws Exception {
+		int intento = 1;
+		while (true) {
+			try {
+				T resultado = operacion.call();
+				if (intento > 1) {
+					recuperadas.incrementAndGet();
+				}
+				depositar();
+				return resultado;
+			} catch (Exception e) {
+				if (!isTransitorio(e)) {
+					throw e;
+				}
+				if (intento >= maxIntentos) {
+					agotadas.incrementAndGet();
+					throw e;
+				}
+				if (!retirar()) {
+					sinPresupuesto.incrementAndGet();
+					throw e;
+				}
+				long espera = getEspera(intento);
+				long restante = Deadline.getRestante();
+				if (restante >= 0 && restante <= espera) {
+					// No quedaria tiempo para el siguiente intento
+					agotadas.incrementAndGet();
+					throw e;
+				}
+				reintentos.incrementAndGet();
+				log.warn("Error transitorio en el intento " + intento + ", se reintenta en " + espera + " ms: " + e.getMessage());
+				try {
+					Thread.sleep(espera);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+				intento++;
+			}
+		}
+	}
+
+	/**
+	 * Espera aleatoria entre 0 y la espera exponencial del intento
+	 */
+	static long getEspera(int intento) {
+		long tope = Math.min(ESPERA_MAXIMA, ESPERA_BASE << Math.min(intento - 1, 20));
+		return ThreadLocalRandom.current().nextLong(tope + 1);
+	}
+
+	static void depositar() {
+		if (presupuesto.get() < MAX_PRESUPUESTO) {
+			presupuesto.incrementAndGet();
+		}
+	}
+
+	static boolean retirar() {
+		int actual;
+		do {
+			actual = presupuesto.get();
+			if (actual < COSTE_REINTENTO) {
+				return false;
+			}
+		} while (!presupuesto.compareAndSet(actual, actual - COSTE_REINTENTO));
+		return true;
+	}
+
+	/**
+	 * Indica si el error, o alguna de sus causas, es un error transitorio de
+	 * MySQL que puede funcionar al repetir la transaccion
+	 *
+	 * @param error error a comprobar
+	 * @return <code>true</code> si es un interbloqueo o una espera de bloqueo
+	 *         agotada
+	 */
+	public static boolean isTransitorio(Throwable error) {
+		for (Throwable causa = error; causa != null; causa = causa.getCause() == causa ? null : causa.getCause()) {
+			if (causa instanceof SQLTransactionRollbackException) {
+				return true;
+			}
+			if (causa instanceof SQLException) {
+				for (SQLException sqlError = (SQLException) causa; sqlError != null; sqlError = sqlError.getNextException()) {
+					if (ESTADO_SERIALIZACION.equals(sqlError.getSQLState())
+							|| sqlError.getErrorCode() == ER_LOCK_DEADLOCK
+							|| sqlError.getErrorCode() == ER_LOCK_WAIT_TIMEOUT) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	public static int getMaxIntentos() {
+		return maxIntentos;
+	}
+
+	/**
+	 * Fija el numero maximo de intentos de cada operacion
+	 *
+	 * @param intentos intentos incluido el primero, 1 para no reintentar
+	 */
+	public static void setMaxIntentos(int intentos) {
+		maxIntentos = Math.max(1, intentos);
+	}
+
+	/**
+	 * @return numero de reintentos realizados
+	 */
+	public static long getReintentos() {
+		return reintentos.get();
+	}
+
+	/**
+	 * @return numero de operaciones que han funcionado tras reintentarlas
+	 */
+	public static long getRecuperadas() {
+		return recuperadas.get();
+	}
+
+	/**
+	 * @return numero de operaciones que han fallado tras agotar los intentos
+	 */
+	public static long getAgotadas() {
+		return agotadas.get();
+	}
+
+	/**
+	 * @return numero de operaciones no reintentadas por falta de presupuesto
+	 */
+	public static long getSinPresupuesto() {
+		return sinPresupuesto.get();
+	}
+
+	/**
+	 * @return reintentos disponibles en el presupuesto
+	 */
+	public static int getPresupuesto() {
+		return presupuesto.get() / COSTE_REINTENTO;
+	}
+}
@@ -16,8 +16,12 @@
 package es.magDevs.myRecipes.dal.dao;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Reader;
+import java.io.Writer;
 import java.nio.charset.Charset;
+import java.sql.BatchUpdateException;
 import java.sql.Blob;
 import java.sql.Clob;
 import java.sql.Connection;
@@ -30,8 +34,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
 import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -50,12 +57,74 @@ public abstract class AbstractDAO {
 	
 	protected Connection con = null;
 	
+	// Cache de sentencias de la conexion, null si la conexion no tiene
+	protected StatementCache statementCache = null;
+	
 	final static Logger log = LoggerFactory.getLogger(AbstractDAO.class);
 	
 	public final static String SEPARADOR="#@#";
+	
+	/**
+	 * Separador entre los campos de un mismo elemento en los campos
+	 * concatenados con {@link #getConcatFields(List, String)}
+	 */
+	public final static String SEPARADOR_CAMPOS="#|#";
+	
+	// Caracter con el que empiezan los separadores, se duplica en los datos concatenados
+	private final static char MARCA_SEPARADOR = '#';
+	
+	// Valor que ocupa el lugar de los campos null en los datos concatenados
+	private final static String MARCA_NULO = MARCA_SEPARADOR + "0";
+	
+	/**
+	 * Codigo de error de MySQL (ER_CUT_VALUE_GROUP_CONCAT) con el que
+	 * {@link #splitConcatFields(String, int)} indica que el valor se corto al
+	 * llegar a <code>group_concat_max_len</code>
+	 */
+	public final static int ERROR_CONCATENACION_CORTADA = 1260;
+	
+	/**
+	 * Bytes de <code>group_concat_max_len</code> que fija
+	 * {@link #ampliarConcatenacion()} en la sesion
+	 */
+	public final static int TAMANO_CONCATENACION = 1048576;
+	
+	/**
+	 * Numero de ordenes por defecto que se envian en cada lote
+	 */
+	public final static int TAMANO_LOTE_DEFECTO = 100;
+	
+	private static volatile int tamanoLote = TAMANO_LOTE_DEFECTO;
+	
+	/**
+	 * Tamaño de fetch con el que el driver de MySQL devuelve las tuplas una a
+	 * una en lugar de cargar todo el resultado en memoria
+	 */
+	public final static int FETCH_SIZE_STREAMING = Integer.MIN_VALUE;
+	
+	private static volatile int fetchSize = FETCH_SIZE_STREAMING;
+	
+	/**
+	 * Tamaños a los que se rellenan las listas de las condiciones IN, para que
+	 * listas de distinta longitud compartan la misma SQL. El ultimo es el
+	 * numero maximo de valores de cada consulta en
+	 * {@link #runSelectIn(String, String, Collection, ResultSetHandler)}
+	 */
+	protected final static int[] TAMANOS_IN = { 1, 4, 16, 64, 256, 1000 };
+	
+	/**
+	 * Numero de valores a partir del cual
+	 * {@link #runSelectIn(String, String, Collection, ResultSetHandler)} carga
+	 * los valores en una tabla temporal en lugar de usar listas IN
+	 */
+	public final static int UMBRAL_TABLA_TEMPORAL = 5000;
+	
+	// Tabla temporal de la conexion para las consultas con muchos valores
+	private final static String TABLA_TEMPORAL_IN = "tmp_valores_in";
 
 	public AbstractDAO(Connection connection) {
 		this.con = connection;
+		this.statementCache = StatementCache.get(connection);
 	}
 
 	/**
@@ -83,9 +152,34 @@ public abstract class AbstractDAO {
 		T processResultSet(ResultSet rs) throws SQLException;
 	}
 	
+	/**
+	 * Interfaz para consumir cada uno de los datos obtenidos en una consulta
+	 * segun se van leyendo, sin acumularlos en memoria.
+	 * 
+	 * @author javier.vaquero
+	 *
+	 * @param <T>
+	 *            tipo de dato generado al obtener los datos del
+	 *            {@link ResultSet}
+	 */
+	public static interface RowConsumer<T> {
+		/**
+		 * Procesa un dato obtenido de la consulta. Mientras se esta leyendo el
+		 * resultado la conexion esta ocupada, por lo que no se pueden lanzar
+		 * otras consultas con la misma conexion desde este metodo.
+		 * 
+		 * @param row
+		 *            dato obtenido de la tupla actual
+		 * @throws Exception
+		 *             si se lanza se detiene la lectura y se propaga
+		 */
+		void accept(T row) throws Exception;
+	}
+	
 	/**
 	 * Cierra un {@link ResultSet} y un {@link PreparedStatement} si estan
-	 * iniciados
+	 * iniciados. Si la sentencia pertenece a la cache de sentencias de la
+	 * conexion, se devuelve a la cache en lugar de cerrarla
 	 * 
 	 * @param rs
 	 * @param stmt
@@ -100,7 +194,11 @@ public abstract class AbstractDAO {
 		}
 		try {
 			if (stmt != null) {
-				stmt.close();
+				if (statementCache != null && statementCache.isPrestada(stmt)) {
+					statementCache.devolver((PreparedStatement) stmt);
+				} else {
+					stmt.close();
+				}
 			}
 		} catch (Exception e) {
 			log.error("Error", e);
@@ -108,7 +206,32 @@ public abstract class AbstractDAO {
 	}
 	
 	/**
-	 * Fija en el {@link PreparedStatement} el valor indicado en funcion de su tipo
+	 * Obtiene un {@link PreparedStatement} para la SQL indicada. Si la conexion
+	 * tiene cache de sentencias se reutiliza una ya preparada, en ese caso se
+	 * debe liberar con {@link #close(ResultSet, Statement)}
+	 * 
+	 * @param sql
+	 *            parametrizada a preparar
+	 * @param clavesGeneradas
+	 *            si se deben poder recuperar las claves generadas
+	 * @return sentencia preparada
+	 * @throws SQLException
+	 */
+	protected PreparedStatement prepareStatement(String sql, boolean clavesGeneradas) throws SQLException {
+		if (statementCache != null) {
+			return statementCache.preparar(sql, clavesGeneradas);
+		}
+		if (clavesGeneradas) {
+			return con.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+		}
+		return con.prepareStatement(sql);
+	}
+	
+	/**
+	 * Fija en el {@link PreparedStatement} el valor indicado en funcion de su
+	 * tipo. Los {@link Reader} y {@link InputStream} se envian al driver segun
+	 * se leen, sin copiarlos antes en memoria, y solo se pueden usar en una
+	 * ejecucion
 	 * @param stmt statement SQL
 	 * @param pos posicion en la que se fijara el valor dentro del statement
 	 * @param value valor que se fijara
@@ -129,6 +252,12 @@ public abstract class AbstractDAO {
 			stmt.setBlob(pos, (Blob) value);
 		} else if(value instanceof Clob) {
 			stmt.setClob(pos, (Clob) value);
+		} else if(value instanceof Reader) {
+			stmt.setCharacterStream(pos, (Reader) value);
+		} else if(value instanceof InputStream) {
+			stmt.setBinaryStream(pos, (InputStream) value);
+		} else if(value instanceof byte[]) {
+			stmt.setBytes(pos, (byte[]) value);
 		} else {
 			throw new SQLException("Tipo de parametro no soportado: "+value.getClass());
 		}
@@ -185,30 +314,176 @@ public abstract class AbstractDAO {
 	protected <T extends Object> List<T> runSelect(String sql, List<Object> params, ResultSetHandler<T> resultSetHandler) throws SQLException {
 		PreparedStatement stmt = null;
 		ResultSet rs = null;
+		ScheduledFuture<?> cancelacion = null;
 		List<T> retorno = new ArrayList<>();
+		long inicio = System.nanoTime();
+		boolean error = true;
 		
 		try {
 			log.debug("SQL: " + sql);
 			log.debug("Parametros: "+StringUtils.join(params, ", "));
 			// Creamos el prepared statement
-			stmt = con.prepareStatement(sql);
+			stmt = prepareStatement(sql, false);
 			// Lo rellenamos
 			fillStmt(params, stmt);
-			// Lo ejecutamos
+			// Lo ejecutamos con el tiempo que le queda a la operacion
+			cancelacion = Deadline.aplicar(stmt);
 			rs = stmt.executeQuery();
 			while (rs != null && rs.next()) {
 				// Por cada tupla, que se encargue quien ha llamado de procesar los datos
 				retorno.add(resultSetHandler.processResultSet(rs));
 			}
 			log.debug("Numero de resultados: " + retorno.size());
+			error = false;
 		} catch (SQLException e) {
 			throw new SQLException("Error al ejecutar SQL:\n"+sql+"\nParametros: "+StringUtils.join(params, ", ")+"\n", e);
 		} finally {
+			Deadline.finalizar(cancelacion);
 			close(rs, stmt);
+			long tiempo = System.nanoTime() - inicio;
+			SqlStatistics.registrar(sql, tiempo, retorno.size(), error);
+			SlowQueryLog.registrar(sql, params, tiempo);
+		}
+		return retorno;
+	}
+	
+	/**
+	 * Ejecuta la SQL indicada igual que
+	 * {@link #runSelect(String, List, ResultSetHandler)}, pero usando la
+	 * {@link QueryCache} si esta activa y no se esta dentro de una transaccion.
+	 * Solo se guardan los resultados leidos de la principal: una replica con
+	 * retraso devolveria datos anteriores a la version de las tablas con la que
+	 * se guardan, y los aciertos de la cache no pasan por {@link ReplicaRouter}.
+	 * Los datos guardados en la cache nunca se entregan directamente, siempre
+	 * se devuelven copias para que quien llama pueda modificarlos.
+	 * 
+	 * @param sql
+	 *            parametrizada a ejecutar
+	 * @param params
+	 *            parametros que se usaran en la consulta
+	 * @param tablas
+	 *            tablas que lee la consulta, si se modifica alguna se descarta
+	 *            el resultado guardado
+	 * @param resultSetHandler
+	 *            procesador que se ejecuta para cada tupla obtenida en la
+	 *            consulta
+	 * @param copia
+	 *            funcion que copia cada dato obtenido
+	 * @return datos obtenidos en la consulta
+	 */
+	@SuppressWarnings("unchecked")
+	protected <T extends Object> List<T> runCachedSelect(String sql, List<Object> params, Collection<String> tablas,
+			ResultSetHandler<T> resultSetHandler, UnaryOperator<T> copia) throws SQLException {
+		// Dentro de una transaccion se podrian guardar datos sin confirmar
+		List<Object> clave = QueryCache.isActiva() && con.getAutoCommit() ? QueryCache.getClave(sql, params) : null;
+		if (clave == null) {
+			return runSelect(sql, params, resultSetHandler);
+		}
+		List<T> guardado = (List<T>) QueryCache.get(clave);
+		if (guardado != null) {
+			log.debug("SQL (cache): " + sql);
+			return copiar(guardado, copia);
+		}
+		if (ReplicaRouter.isReplica(con)) {
+			// Lo guardado en la cache siempre es de la principal, y por tanto tan reciente como la replica
+			return runSelect(sql, params, resultSetHandler);
+		}
+		QueryCache.Version version = QueryCache.getVersion(tablas);
+		List<T> retorno = runSelect(sql, params, resultSetHandler);
+		QueryCache.put(clave, version, Collections.unmodifiableList(copiar(retorno, copia)));
+		return retorno;
+	}
+	
+	private static <T> List<T> copiar(List<T> datos, UnaryOperator<T> copia) {
+		List<T> retorno = new ArrayList<>(datos.size());
+		for (T dato : datos) {
+			retorno.add(copia.apply(dato));
 		}
 		return retorno;
 	}
 	
+	/**
+	 * Ejecuta la SQL indicada con un {@link PreparedStatement} añadiendole los
+	 * parametros indicados, pasando cada tupla al consumidor segun se lee en
+	 * lugar de acumular todo el resultado. Se fija el tamaño de fetch
+	 * {@link #getFetchSize()} para que el driver no cargue todo el resultado en
+	 * memoria. El {@link ResultSet} y la sentencia se cierran al terminar,
+	 * tambien si el consumidor lanza una excepcion. En {@link SqlStatistics}
+	 * se registra el tiempo total, y en {@link SlowQueryLog} solo hasta
+	 * obtener la primera tupla, sin el procesado del consumidor.
+	 * 
+	 * @param sql
+	 *            parametrizada a ejecutar
+	 * @param params
+	 *            parametros que se usaran en la consulta
+	 * @param resultSetHandler
+	 *            procesador que se ejecuta para cada tupla obtenida en la
+	 *            consulta
+	 * @param consumer
+	 *            consumidor de cada dato obtenido
+	 * @return numero de tuplas procesadas
+	 */
+	protected <T extends Object> int runSelect(String sql, List<Object> params, ResultSetHandler<T> resultSetHandler, RowConsumer<T> consumer) throws Exception {
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		ScheduledFuture<?> cancelacion = null;
+		int retorno = 0;
+		long inicio = System.nanoTime();
+		long hastaPrimera = -1;
+		boolean error = true;
+		
+		try {
+			log.debug("SQL (streaming): " + sql);
+			log.debug("Parametros: "+StringUtils.join(params, ", "));
+			// No se usa la cache de sentencias para no arrastrar el tamaño de fetch a otras consultas
+			stmt = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			stmt.setFetchSize(fetchSize);
+			fillStmt(params, stmt);
+			cancelacion = Deadline.aplicar(stmt);
+			rs = stmt.executeQuery();
+			boolean hayTupla = rs != null && rs.next();
+			hastaPrimera = System.nanoTime() - inicio;
+			while (hayTupla) {
+				consumer.accept(resultSetHandler.processResultSet(rs));
+				retorno++;
+				hayTupla = rs.next();
+			}
+			log.debug("Numero de resultados: " + retorno);
+			error = false;
+		} catch (SQLException e) {
+			throw new SQLException("Error al ejecutar SQL:\n"+sql+"\nParametros: "+StringUtils.join(params, ", ")+"\n", e);
+		} finally {
+			Deadline.finalizar(cancelacion);
+			close(rs, stmt);
+			// El tiempo total incluye el procesado de cada tupla por el consumidor, que
+			// no debe hacer que un recorrido largo cuente como consulta lenta
+			long tiempo = System.nanoTime() - inicio;
+			SqlStatistics.registrar(sql, tiempo, retorno, error);
+			SlowQueryLog.registrar(sql, params, hastaPrimera >= 0 ? hastaPrimera : tiempo);
+		}
+		return retorno;
+	}
+	
+	/**
+	 * @return tamaño de fetch usado en las consultas que procesan el resultado
+	 *         tupla a tupla
+	 */
+	public static int getFetchSize() {
+		return fetchSize;
+	}
+	
+	/**
+	 * Fija el tamaño de fetch usado en las consultas que procesan el resultado
+	 * tupla a tupla. Con MySQL {@link #FETCH_SIZE_STREAMING} lee las tuplas una
+	 * a una; un valor positivo solo tiene efecto si la URL de conexion incluye
+	 * useCursorFetch=true.
+	 * 
+	 * @param tamano tamaño de fetch
+	 */
+	public static void setFetchSize(int tamano) {
+		fetchSize = tamano;
+	}
+	
 	/**
 	 * Ejecuta la SQL indicada con un {@link PreparedStatement} añadiendole los
 	 * parametros indicados. Devuelve el primer elemento obtenido en la
@@ -250,7 +525,113 @@ public abstract class AbstractDAO {
 	}
 	
 	/**
-	 * Obtiene un campo sql concatenado.
+	 * Ejecuta la select indicada filtrando el campo por todos los valores
+	 * recibidos, sin importar cuantos sean. Hasta
+	 * {@link #UMBRAL_TABLA_TEMPORAL} valores se lanzan consultas con listas IN
+	 * de como mucho el ultimo de {@link #TAMANOS_IN} valores, rellenas hasta
+	 * uno de esos tamaños para reutilizar las mismas sentencias. Con mas
+	 * valores se cargan en una tabla temporal de la conexion y se hace un JOIN
+	 * con ella, salvo que la conexion sea de solo lectura (por ejemplo de una
+	 * replica), en la que el driver no deja crear ni rellenar la tabla; en ese
+	 * caso se siguen usando listas IN.
+	 * 
+	 * @param select
+	 *            SELECT sin condiciones, de una unica tabla
+	 * @param field
+	 *            campo por el que se filtra
+	 * @param values
+	 *            valores del campo, los repetidos solo se consultan una vez
+	 * @param resultSetHandler
+	 *            procesador que se ejecuta para cada tupla obtenida en la
+	 *            consulta
+	 * @return datos obtenidos en todas las consultas, sin un orden determinado
+	 */
+	protected <T extends Object> List<T> runSelectIn(String select, String field, Collection<Long> values, ResultSetHandler<T> resultSetHandler) throws Exception {
+		List<Long> valores = new ArrayList<>(new LinkedHashSet<>(values));
+		valores.remove(null);
+		List<T> retorno = new ArrayList<>();
+		if (valores.isEmpty()) {
+			return retorno;
+		}
+		// Solo se comprueba con muchos valores, con MySQL puede costar una consulta
+		if (valores.size() > UMBRAL_TABLA_TEMPORAL && !con.isReadOnly()) {
+			return runSelectTablaTemporal(select, field, valores, resultSetHandler);
+		}
+		int maximo = TAMANOS_IN[TAMANOS_IN.length - 1];
+		for (int i = 0; i < valores.size(); i += maximo) {
+			List<Object> params = rellenarIn(valores.subList(i, Math.min(i + maximo, valores.size())));
+			String sql = select + buildInCondition(null, field, StringUtils.join(Collections.nCopies(params.size(), "?"), ","));
+			retorno.addAll(runSelect(sql, params, resultSetHandler));
+		}
+		return retorno;
+	}
+	
+	private <T extends Object> List<T> runSelectTablaTemporal(String select, String field, List<Long> valores, ResultSetHandler<T> resultSetHandler) throws Exception {
+		// La tabla temporal solo existe para esta conexion
+		ejecutarDDL("DROP TEMPORARY TABLE IF EXISTS " + TABLA_TEMPORAL_IN);
+		ejecutarDDL("CREATE TEMPORARY TABLE " + TABLA_TEMPORAL_IN + " (valor BIGINT NOT NULL PRIMARY KEY) ENGINE=MEMORY");
+		try {
+			List<List<Object>> params = new ArrayList<>(valores.size());
+			for (Long valor : valores) {
+				params.add(Collections.singletonList(valor));
+			}
+			runMultipleUpdate("INSERT INTO " + TABLA_TEMPORAL_IN + " (valor) VALUES (?)", params, null);
+			return runSelect(select + " JOIN " + TABLA_TEMPORAL_IN + " ON " + field + " = " + TABLA_TEMPORAL_IN + ".valor", new ArrayList<>(), resultSetHandler);
+		} finally {
+			// Las conexiones se reutilizan, no debe quedar la tabla creada
+			ejecutarDDL("DROP TEMPORARY TABLE IF EXISTS " + TABLA_TEMPORAL_IN);
+		}
+	}
+	
+	/**
+	 * Ejecuta una orden DDL directamente, sin pasar por la cache de sentencias
+	 * ni invalidar la {@link QueryCache}
+	 */
+	private void ejecutarDDL(String sql) throws SQLException {
+		log.debug("SQL: " + sql);
+		try (Statement stmt = con.createStatement()) {
+			ScheduledFuture<?> cancelacion = Deadline.aplicar(stmt);
+			try {
+				stmt.execute(sql);
+			} finally {
+				Deadline.finalizar(cancelacion);
+			}
+		}
+	}
+	
+	/**
+	 * Rellena los valores de una condicion IN repitiendo el ultimo hasta el
+	 * siguiente de los {@link #TAMANOS_IN}, o hasta el siguiente multiplo del
+	 * mayor. Repetir un valor no cambia el resultado de IN ni de NOT IN, y asi
+	 * listas de distinta longitud generan la misma SQL
+	 * 
+	 * @param values
+	 *            valores de la condicion, al menos uno
+	 * @return valores rellenos
+	 */
+	protected static List<Object> rellenarIn(Collection<?> values) {
+		int tamano = values.size();
+		int relleno = -1;
+		for (int i = 0; i < TAMANOS_IN.length && relleno < 0; i++) {
+			if (TAMANOS_IN[i] >= tamano) {
+				relleno = TAMANOS_IN[i];
+			}
+		}
+		if (relleno < 0) {
+			int maximo = TAMANOS_IN[TAMANOS_IN.length - 1];
+			relleno = (tamano + maximo - 1) / maximo * maximo;
+		}
+		List<Object> retorno = new ArrayList<>(relleno);
+		retorno.addAll(values);
+		Object ultimo = retorno.get(tamano - 1);
+		while (retorno.size() < relleno) {
+			retorno.add(ultimo);
+		}
+		return retorno;
+	}
+	
+	/**
+	 * Obtiene un campo sql concatenado con GROUP_CONCAT de MySQL.
 	 * 
 	 * @param field
 	 *            Campo sql a concatenar
@@ -262,11 +643,11 @@ public abstract class AbstractDAO {
 	 * @return Devuelve la sentencia sql para concatenar un campo
 	 */
 	public static String getConcatField(String field, String order, String separador) {
-		return "rtrim(xmlagg(xmlelement(e,"+field+",'"+separador+"').extract('//text()') "+order+").GetClobVal(),'"+separador+"')";
+		return "GROUP_CONCAT("+field+" "+StringUtils.defaultString(order)+" SEPARATOR '"+separador+"')";
 	}
 	
 	/**
-	 * Obtiene un campo sql concatenado.
+	 * Obtiene un campo sql concatenado con GROUP_CONCAT de MySQL.
 	 * 
 	 * @param field
 	 *            Campo sql a concatenar
@@ -278,6 +659,123 @@ public abstract class AbstractDAO {
 		return getConcatField(field, order, SEPARADOR);
 	}
 	
+	/**
+	 * Obtiene un campo sql con varios campos de cada tupla concatenados: los
+	 * campos de una tupla se separan con {@link #SEPARADOR_CAMPOS} y las tuplas
+	 * con {@link #SEPARADOR}. El valor empieza por el numero de tuplas y cada
+	 * tupla termina con {@link #SEPARADOR_CAMPOS}. En los datos se duplica el
+	 * caracter con el que empiezan los separadores y los <code>null</code> se
+	 * marcan aparte, asi pueden contener cualquier texto. Se puede deshacer con
+	 * {@link #splitConcatFields(String, int)}. MySQL corta el resultado en
+	 * <code>group_concat_max_len</code> bytes.
+	 * 
+	 * @param fields
+	 *            Campos sql a concatenar
+	 * @param order
+	 *            Sentencia de ordenación sql, debe incluir el ORDER BY
+	 * @return Devuelve la sentencia sql para concatenar los campos
+	 */
+	public static String getConcatFields(List<String> fields, String order) {
+		List<String> escapados = new ArrayList<>(fields.size() + 1);
+		for (String field : fields) {
+			escapados.add("IFNULL(REPLACE("+field+",'"+MARCA_SEPARADOR+"','"+MARCA_SEPARADOR+MARCA_SEPARADOR+"'),'"+MARCA_NULO+"')");
+		}
+		// Campo vacio final, para distinguir la ultima tupla completa de una cortada
+		escapados.add("''");
+		String tuplas = getConcatField("CONCAT_WS('"+SEPARADOR_CAMPOS+"',"+StringUtils.join(escapados, ",")+")", order, SEPARADOR);
+		return "CONCAT_WS('"+SEPARADOR+"',COUNT(*),"+tuplas+")";
+	}
+	
+	/**
+	 * Separa un campo obtenido con {@link #getConcatFields(List, String)} en
+	 * los campos de cada tupla
+	 * 
+	 * @param valor
+	 *            valor concatenado, puede ser <code>null</code> si no habia
+	 *            tuplas
+	 * @param numCampos
+	 *            numero de campos concatenados de cada tupla
+	 * @return lista con los campos de cada tupla
+	 * @throws SQLException
+	 *             con el codigo {@link #ERROR_CONCATENACION_CORTADA} si MySQL
+	 *             ha cortado el valor, para no devolver tuplas incompletas
+	 */
+	public static List<String[]> splitConcatFields(String valor, int numCampos) throws SQLException {
+		List<String[]> tuplas = new ArrayList<>();
+		if (StringUtils.isEmpty(valor)) {
+			return tuplas;
+		}
+		int inicio = valor.indexOf(SEPARADOR);
+		int total = Integer.parseInt(inicio < 0 ? valor : valor.substring(0, inicio));
+		List<String> campos = new ArrayList<>(numCampos);
+		StringBuilder campo = new StringBuilder();
+		boolean nulo = false;
+		boolean completa = true;
+		for (int i = inicio < 0 ? valor.length() : inicio + SEPARADOR.length(); i < valor.length(); i++) {
+			char c = valor.charAt(i);
+			if (c != MARCA_SEPARADOR) {
+				campo.append(c);
+			} else if (valor.startsWith(MARCA_SEPARADOR + "" + MARCA_SEPARADOR, i)) {
+				campo.append(c);
+				i++;
+			} else if (valor.startsWith(MARCA_NULO, i)) {
+				nulo = true;
+				i += MARCA_NULO.length() - 1;
+			} else if (valor.startsWith(SEPARADOR_CAMPOS, i)) {
+				campos.add(nulo ? null : campo.toString());
+				campo.setLength(0);
+				nulo = false;
+				i += SEPARADOR_CAMPOS.length() - 1;
+			} else if (valor.startsWith(SEPARADOR, i)) {
+				// Las tuplas completas terminan en un separador de campos
+				completa = completa && campo.length() == 0 && campos.size() == numCampos;
+				tuplas.add(campos.toArray(new String[numCampos]));
+				campos.clear();
+				i += SEPARADOR.length() - 1;
+			} else {
+				// Solo puede ser un separador al que le falta el final
+				completa = false;
+				break;
+			}
+		}
+		if (inicio >= 0) {
+			completa = completa && !nulo && campo.length() == 0 && campos.size() == numCampos;
+			tuplas.add(campos.toArray(new String[numCampos]));
+		}
+		if (!completa || tuplas.size() != total) {
+			throw new SQLException("Valor de GROUP_CONCAT cortado, se han leido " + tuplas.size() + " de " + total
+					+ " tuplas. Se debe ampliar group_concat_max_len", "HY000", ERROR_CONCATENACION_CORTADA);
+		}
+		return tuplas;
+	}
+	
+	/**
+	 * Indica si una excepcion, o alguna de sus causas, se debe a que MySQL ha
+	 * cortado un valor de GROUP_CONCAT, ver
+	 * {@link #splitConcatFields(String, int)}
+	 * 
+	 * @param e
+	 *            excepcion a comprobar
+	 * @return <code>true</code> si el valor se corto
+	 */
+	protected static boolean isConcatenacionCortada(Throwable e) {
+		for (Throwable causa = e; causa != null; causa = causa.getCause()) {
+			if (causa instanceof SQLException && ((SQLException) causa).getErrorCode() == ERROR_CONCATENACION_CORTADA) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Amplia <code>group_concat_max_len</code> a {@link #TAMANO_CONCATENACION}
+	 * en la sesion de la conexion. El cambio se mantiene mientras la conexion
+	 * siga abierta, tambien cuando el pool la reutiliza.
+	 */
+	protected void ampliarConcatenacion() throws SQLException {
+		ejecutarDDL("SET SESSION group_concat_max_len=" + TAMANO_CONCATENACION);
+	}
+	
 	/**
 	 * Añade una condicion a la clausula WHERE de la SQL indicada. Si no se la
 	 * pasa SQL añadira WHERE al principio, si existe alguna condicion en la
@@ -410,6 +908,45 @@ public abstract class AbstractDAO {
 	}
 	
 	
+	/**
+	 * Añade una condicion MATCH(campo) AGAINST (valor) a la clausula WHERE de
+	 * la SQL indicada, que usa el indice FULLTEXT del campo. Si no se la pasa
+	 * SQL añadira WHERE al principio, si existe alguna condicion en la SQL, se
+	 * añadira un AND. Si el valor es <code>null</code> o esta vacio no añadira
+	 * ninguna condicion
+	 * 
+	 * @param sql
+	 *            setencia WHERE SQL a la que se añadira la condicion
+	 * @param params
+	 *            lista donde se guardara el valor del parametro, en caso de que
+	 *            se añada la condicion. Asi se podra usar un
+	 *            {@link PreparedStatement}
+	 * @param field
+	 *            campo o campos separados por comas con indice FULLTEXT
+	 * @param value
+	 *            texto a buscar, en lenguaje natural
+	 * @return setencia WHERE SQL con la condicion
+	 */
+	protected static String addMatchCondition(String sql, List<Object> params, String field, Object value) {
+		if (value == null || StringUtils.isBlank(value.toString())) {
+			return sql;
+		}
+		return addCondition(sql, params, getMatchField(field), value);
+	}
+	
+	/**
+	 * Obtiene la expresion MATCH(campo) AGAINST (?) en lenguaje natural, que
+	 * devuelve la relevancia de cada tupla para el texto buscado y se puede
+	 * usar tanto en la select como en las condiciones
+	 * 
+	 * @param field
+	 *            campo o campos separados por comas con indice FULLTEXT
+	 * @return expresion SQL con un parametro para el texto a buscar
+	 */
+	public static String getMatchField(String field) {
+		return "MATCH(" + field + ") AGAINST (?)";
+	}
+	
 	/**
 	 * Añade una condicion de LIKE '%{@code valor}%' a la clausula WHERE de la SQL indicada. Si no
 	 * se la pasa SQL añadira WHERE al principio, si existe alguna condicion en
@@ -520,8 +1057,9 @@ public abstract class AbstractDAO {
 	protected static String addInCondition(boolean distinct,String sql, List<Object> params, String field, Object... values) {
 		String result = sql;
 		if (values != null && values.length != 0 && values[0] != null) {
-			result = buildInCondition(sql, field, StringUtils.join(Collections.nCopies(values.length, "?"), ","), distinct);
-			params.addAll(Arrays.asList(values));
+			List<Object> valores = rellenarIn(Arrays.asList(values));
+			result = buildInCondition(sql, field, StringUtils.join(Collections.nCopies(valores.size(), "?"), ","), distinct);
+			params.addAll(valores);
 		}
 		return result;
 	}
@@ -688,7 +1226,9 @@ public abstract class AbstractDAO {
 	}
 	
 	/**
-	 * Añade paginacion a la SQL indicada, añadiendo las condiciones necesarias.
+	 * Añade paginacion a la SQL indicada con LIMIT y OFFSET de MySQL. Para
+	 * paginas profundas es mejor {@link QueryConditions#limit(int)} filtrando
+	 * por la ultima clave leida.
 	 * 
 	 * @param sql
 	 *            parametrizada a paginar
@@ -703,16 +1243,13 @@ public abstract class AbstractDAO {
 	 * @return SQL paginada
 	 */
 	protected static String addPagination(String sql, List<Object> params, Integer pagina, Integer tamano) {
-		String sqlSelect = "SELECT * FROM (SELECT A.*, ROWNUM RNUM FROM (";
-		String sqlWhereRowmax = " ) A WHERE ROWNUM < ?";
-		String sqlWhereRowmin = " ) WHERE RNUM >= ?";
-		params.add(new Integer((pagina * tamano) + 1));
-		params.add(new Integer((pagina - 1) * tamano + 1));
-		return sqlSelect + sql + sqlWhereRowmax + sqlWhereRowmin;
+		params.add(tamano);
+		params.add((pagina - 1) * tamano);
+		return sql + " LIMIT ? OFFSET ?";
 	}
 	
 	/**
-	 * Añade paginacion a la SQL indicada, añadiendo las condiciones necesarias.
+	 * Añade limites a la SQL indicada con LIMIT y OFFSET de MySQL.
 	 * 
 	 * @param sql
 	 *            parametrizada a paginar
@@ -728,12 +1265,9 @@ public abstract class AbstractDAO {
 	 * @return SQL paginada
 	 */
 	protected static String addLimits(String sql, List<Object> params, Integer inicio, Integer tamano) {
-		String sqlSelect = "SELECT * FROM (SELECT A.*, ROWNUM RNUM FROM (";
-		String sqlWhereRowmax = " ) A WHERE ROWNUM < ?";
-		String sqlWhereRowmin = " ) WHERE RNUM >= ?";
-		params.add(new Integer(inicio + tamano));
-		params.add(new Integer(inicio));
-		return sqlSelect + sql + sqlWhereRowmax + sqlWhereRowmin;
+		params.add(tamano);
+		params.add(inicio - 1);
+		return sql + " LIMIT ? OFFSET ?";
 	}
 	
 	/**
@@ -814,7 +1348,9 @@ public abstract class AbstractDAO {
 	
 	/**
 	 * Obtiene del {@link ResultSet} el valor del CLOB en la posicion
-	 * indicada. Tiene en cuenta que puede ser <code>null</code>.
+	 * indicada. Tiene en cuenta que puede ser <code>null</code>. Carga todo el
+	 * valor en memoria, para textos grandes es mejor
+	 * {@link #copyClob(ResultSet, int, Writer)}
 	 * 
 	 * @param rs
 	 *            {@link ResultSet} del que se obtendra el dato
@@ -836,6 +1372,55 @@ public abstract class AbstractDAO {
 		return result;
 	}
 	
+	/**
+	 * Copia el valor del CLOB en la posicion indicada al {@link Writer}
+	 * indicado por bloques. Se debe llamar mientras se procesa la tupla. Solo
+	 * evita tener el valor entero en memoria desde el {@link ResultSetHandler}
+	 * de {@link #runSelect(String, List, ResultSetHandler, RowConsumer)}: con
+	 * el resto de consultas el driver ya ha cargado la tupla completa
+	 * 
+	 * @param rs
+	 *            {@link ResultSet} posicionado en la tupla
+	 * @param position
+	 *            posicion del campo
+	 * @param out
+	 *            destino del texto, no se cierra
+	 * @return numero de caracteres copiados o -1 si el valor es
+	 *         <code>null</code>
+	 * @throws SQLException
+	 */
+	protected static long copyClob(ResultSet rs, int position, Writer out) throws SQLException {
+		try (Reader reader = rs.getCharacterStream(position)) {
+			return reader == null ? -1 : IOUtils.copyLarge(reader, out);
+		} catch (IOException e) {
+			throw new SQLException("Error al copiar un CLOB", e);
+		}
+	}
+	
+	/**
+	 * Copia el valor del BLOB en la posicion indicada al {@link OutputStream}
+	 * indicado por bloques. Se debe llamar mientras se procesa la tupla. Solo
+	 * evita tener el valor entero en memoria desde el {@link ResultSetHandler}
+	 * de {@link #runSelect(String, List, ResultSetHandler, RowConsumer)}: con
+	 * el resto de consultas el driver ya ha cargado la tupla completa
+	 * 
+	 * @param rs
+	 *            {@link ResultSet} posicionado en la tupla
+	 * @param position
+	 *            posicion del campo
+	 * @param out
+	 *            destino de los bytes, no se cierra
+	 * @return numero de bytes copiados o -1 si el valor es <code>null</code>
+	 * @throws SQLException
+	 */
+	protected static long copyBlob(ResultSet rs, int position, OutputStream out) throws SQLException {
+		try (InputStream in = rs.getBinaryStream(position)) {
+			return in == null ? -1 : IOUtils.copyLarge(in, out);
+		} catch (IOException e) {
+			throw new SQLException("Error al copiar un BLOB", e);
+		}
+	}
+	
 	/*
      * ********************************************************************** *
      * INSERT, UPDATE o DELETE *
@@ -844,7 +1429,9 @@ public abstract class AbstractDAO {
 	
 	/**
 	 * Ejecuta el INSERT, UPDATE o DELETE indicado con un {@link PreparedStatement}
-	 * añadiendole los indicados
+	 * añadiendole los indicados. Si se recibe mas de una lista de parametros se
+	 * envian al servidor en lotes de {@link #getTamanoLote()} ordenes usando
+	 * {@link PreparedStatement#addBatch()}
 	 * 
 	 * @param sql       parametrizada a ejecutar
 	 * @param params    parametros que se usaran en la orden, si se recibe mas de
@@ -852,44 +1439,131 @@ public abstract class AbstractDAO {
 	 *                  conjunto de parametros
 	 * @param psHandler interfaz para procesar un {@link PreparedStatement} despues
 	 *                  de ejecutar el insert/update/delete. Puede ser
-	 *                  <code>null</code> si no se quiere hacer nada.
-	 * @return numero de datos afectados
+	 *                  <code>null</code> si no se quiere hacer nada. Si se ejecuta
+	 *                  por lotes se llama una vez despues de cada lote, por lo que
+	 *                  las claves generadas contendran las de todo el lote
+	 * @return numero total de datos afectados
 	 */
  	protected int runMultipleUpdate(String sql, List<List<Object>> params, Consumer<PreparedStatement> psHandler) throws Exception {
 		PreparedStatement stmt = null;
+		ScheduledFuture<?> cancelacion = null;
 		int retorno = 0;
 		String parametros = "";
+		long inicio = System.nanoTime();
+		boolean error = true;
 		try {
 			log.debug("SQL: " + sql);
 			// Creamos el prepared statement
-			if (psHandler != null) {
-				stmt = con.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
-			} else {
-				stmt = con.prepareStatement(sql);
-			}
-			for (List<Object> param : params) {
-				log.debug("Parametros: "+(parametros =StringUtils.join(param, ", ")));
+			stmt = prepareStatement(sql, psHandler != null);
+			// Todos los lotes comparten el tiempo que le queda a la operacion
+			cancelacion = Deadline.aplicar(stmt);
+			if (params.size() == 1) {
+				log.debug("Parametros: "+(parametros = StringUtils.join(params.get(0), ", ")));
 				// Lo rellenamos
-				fillStmt(param, stmt);
+				fillStmt(params.get(0), stmt);
 				// Lo ejecutamos
 				retorno = stmt.executeUpdate();
 				log.debug("Numero de modificaciones: " + retorno);
 				if (psHandler != null) {
 					psHandler.accept(stmt);
 				}
+			} else {
+				int enLote = 0;
+				for (List<Object> param : params) {
+					log.debug("Parametros: "+(parametros = StringUtils.join(param, ", ")));
+					// Lo rellenamos y lo añadimos al lote
+					fillStmt(param, stmt);
+					stmt.addBatch();
+					if (++enLote >= tamanoLote) {
+						retorno += runBatch(stmt, psHandler);
+						enLote = 0;
+					}
+				}
+				if (enLote > 0) {
+					retorno += runBatch(stmt, psHandler);
+				}
 			}
+			error = false;
 		} catch (Exception e) {
 			String message = "Error al ejecutar SQL:\n"+sql+"\nParametros: "+parametros+"\n";
 			if (e instanceof SQLIntegrityConstraintViolationException) {
 				throw e;
 			}
+			if (e instanceof BatchUpdateException && e.getCause() instanceof SQLIntegrityConstraintViolationException) {
+				throw (SQLIntegrityConstraintViolationException) e.getCause();
+			}
 			throw new Exception(message, e);
 		} finally {
+			Deadline.finalizar(cancelacion);
 			close(null, stmt);
+			SqlStatistics.registrar(sql, System.nanoTime() - inicio, retorno, error);
+			invalidarCache(sql);
+		}
+		return retorno;
+	}
+	
+	/**
+	 * Invalida en la {@link QueryCache} los resultados que leen la tabla
+	 * modificada por la SQL. Se hace tambien si la SQL falla, porque en un lote
+	 * puede haber ordenes ya ejecutadas
+	 * 
+	 * @param sql INSERT, UPDATE o DELETE ejecutado
+	 */
+	private void invalidarCache(String sql) {
+		if (QueryCache.isActiva()) {
+			boolean enTransaccion = true;
+			try {
+				enTransaccion = !con.getAutoCommit();
+			} catch (SQLException e) {
+				log.error("Error al comprobar si hay una transaccion abierta", e);
+			}
+			QueryCache.invalidar(sql, enTransaccion);
+		}
+	}
+	
+	/**
+	 * Ejecuta el lote de ordenes acumulado en el {@link PreparedStatement}
+	 * 
+	 * @param stmt      sentencia con las ordenes añadidas al lote
+	 * @param psHandler interfaz para procesar el {@link PreparedStatement}
+	 *                  despues de ejecutar el lote, puede ser <code>null</code>
+	 * @return numero de datos afectados por el lote
+	 * @throws SQLException
+	 */
+	private static int runBatch(PreparedStatement stmt, Consumer<PreparedStatement> psHandler) throws SQLException {
+		int retorno = 0;
+		int[] resultados = stmt.executeBatch();
+		for (int resultado : resultados) {
+			if (resultado > 0) {
+				retorno += resultado;
+			} else if (resultado == Statement.SUCCESS_NO_INFO) {
+				retorno++;
+			}
+		}
+		log.debug("Lote de " + resultados.length + " ordenes, numero de modificaciones: " + retorno);
+		if (psHandler != null) {
+			psHandler.accept(stmt);
 		}
 		return retorno;
 	}
 	
+	/**
+	 * @return numero maximo de ordenes que se envian en cada lote
+	 */
+	public static int getTamanoLote() {
+		return tamanoLote;
+	}
+	
+	/**
+	 * Fija el numero maximo de ordenes que se envian en cada lote en
+	 * {@link #runMultipleUpdate(String, List, Consumer)}
+	 * 
+	 * @param tamano numero de ordenes, como minimo 1
+	 */
+	public static void setTamanoLote(int tamano) {
+		tamanoLote = Math.max(1, tamano);
+	}
+	
 	/**
 	 * Ejecuta el INSERT, UPDATE o DELETE indicado con un
 	 * {@link PreparedStatement} añadiendole los indicados
@@ -936,6 +1610,133 @@ public abstract class AbstractDAO {
 		return id.get(0);
 	}
 	
+	/**
+	 * Realiza un insert por lotes en la tabla indicada de cada una de las listas
+	 * de valores suministradas
+	 * 
+	 * @param table
+	 *            nombre de la tabla
+	 * @param fields
+	 *            campos de la tabla que se insertaran
+	 * @param values
+	 *            lista con los valores de cada tupla a insertar
+	 * @return IDs generados, en el mismo orden que los valores recibidos
+	 * @throws Exception
+	 */
+	protected List<Long> insertAll(String table, List<String> fields, List<List<Object>> values) throws Exception {
+		List<Long> ids = new ArrayList<Long>(values.size());
+		if (values.isEmpty()) {
+			return ids;
+		}
+		String sql = buildInsert(table, fields);
+		runMultipleUpdate(sql, values, ps->{
+			ResultSet rs = null;
+			try {
+				rs = ps.getGeneratedKeys();
+				while (rs != null && rs.next()) {
+					ids.add(rs.getLong(1));
+				}
+			} catch (SQLException e) {
+				log.error("",e);
+			} finally {
+				close(rs, null);
+			}
+		});
+		if (ids.size() != values.size()) {
+			throw new Exception("Error, no se han podido recuperar los IDs generados al realizar insert SQL:\n"+sql+"\nRecuperados "+ids.size()+" de "+values.size()+"\n");
+		}
+		return ids;
+	}
+	
+	/**
+	 * Realiza un update por id y por lotes en la tabla indicada de cada una de
+	 * las listas de valores suministradas
+	 * 
+	 * @param table
+	 *            nombre de la tabla
+	 * @param fields
+	 *            campos de la tabla que se actualizaran
+	 * @param values
+	 *            lista con los valores de cada tupla, el ultimo valor de cada
+	 *            lista debe ser el ID
+	 * @return numero de tuplas actualizadas
+	 * @throws Exception
+	 */
+	protected int updateAll(String table, List<String> fields, List<List<Object>> values) throws Exception {
+		if (values.isEmpty()) {
+			return 0;
+		}
+		return runMultipleUpdate(buildUpdate(table, fields, Arrays.asList("id")), values, null);
+	}
+	
+	/**
+	 * Inserta o actualiza por ID una tupla en la tabla indicada con una unica
+	 * sentencia INSERT ... ON DUPLICATE KEY UPDATE, sin tener que consultar
+	 * antes si existe
+	 * 
+	 * @param table
+	 *            nombre de la tabla
+	 * @param fields
+	 *            campos de la tabla sin el ID
+	 * @param values
+	 *            valores de los campos, el ultimo valor debe ser el ID. Si el
+	 *            ID es <code>null</code> siempre se inserta
+	 * @return ID de la tupla insertada o actualizada
+	 * @throws Exception
+	 */
+	protected Long upsert(String table, List<String> fields, List<Object> values) throws Exception {
+		String sql = buildUpsert(table, fields);
+		List<Long> id = new ArrayList<Long>(1);
+		runUpdate(sql, values, ps->{
+			ResultSet rs = null;
+			try {
+				// Con LAST_INSERT_ID(id) tambien se obtiene el ID si se ha actualizado
+				rs = ps.getGeneratedKeys();
+				if(rs!=null &&  rs.next()) {
+					id.add(rs.getLong(1));
+				}
+			} catch (SQLException e) {
+				log.error("",e);
+			} finally {
+				close(rs, null);
+			}
+		});
+		Object idActual = values.get(values.size() - 1);
+		if (idActual != null) {
+			// Si la tupla ya tenia esos valores no se modifica y el driver no devuelve clave
+			return ((Number) idActual).longValue();
+		}
+		if (id.isEmpty()) {
+			throw new Exception("Error, no se ha podido recuperar el ID generado al realizar upsert SQL:\n"+sql+"\nParametros: "+StringUtils.join(values, ", ")+"\n");
+		}
+		return id.get(0);
+	}
+	
+	/**
+	 * Inserta o actualiza por ID y por lotes las tuplas indicadas con
+	 * INSERT ... ON DUPLICATE KEY UPDATE, sin tener que consultar antes si
+	 * existen
+	 * 
+	 * @param table
+	 *            nombre de la tabla
+	 * @param fields
+	 *            campos de la tabla sin el ID
+	 * @param values
+	 *            lista con los valores de cada tupla, el ultimo valor de cada
+	 *            lista debe ser el ID. Las tuplas sin ID se insertan pero no se
+	 *            obtiene su ID, para ellas es mejor
+	 *            {@link #insertAll(String, List, List)}
+	 * @return numero de tuplas afectadas, segun MySQL cada tupla actualizada
+	 *         cuenta 2
+	 * @throws Exception
+	 */
+	protected int upsertAll(String table, List<String> fields, List<List<Object>> values) throws Exception {
+		if (values.isEmpty()) {
+			return 0;
+		}
+		return runMultipleUpdate(buildUpsert(table, fields), values, null);
+	}
+	
 	/**
 	 * Realiza un update en la tabla indicada de los valores suministrados, para
 	 * las tuplas que cumplan las condiciones que se indiquen
@@ -1076,6 +1877,29 @@ public abstract class AbstractDAO {
 				+ " VALUES("+StringUtils.join(Collections.nCopies(valueFields.size(), "?"), ",")+")";
 	}
 	
+	/**
+	 * Construye una sentencia INSERT ... ON DUPLICATE KEY UPDATE de MySQL que
+	 * inserta la tupla o, si ya existe el ID, actualiza los campos indicados.
+	 * El ID va en el ultimo parametro
+	 * 
+	 * @param table
+	 *            tabla en la que se hara el insert
+	 * @param valueFields
+	 *            campos de los que se insertaran o actualizaran datos, sin el
+	 *            ID
+	 * @return cadena con el INSERT construido
+	 */
+	protected static String buildUpsert(String table, Collection<String> valueFields) {
+		List<String> campos = new ArrayList<>(valueFields);
+		campos.add("id");
+		StringBuilder sql = new StringBuilder(buildInsert(table, campos)).append(" ON DUPLICATE KEY UPDATE ");
+		for (String campo : valueFields) {
+			sql.append(campo).append("=VALUES(").append(campo).append("),");
+		}
+		// Para que getGeneratedKeys devuelva el ID tambien al actualizar
+		return sql.append("id=LAST_INSERT_ID(id)").toString();
+	}
+	
 	/**
 	 * Construye una setencia UPDATE SQL segun los datos indicados
 	 * 
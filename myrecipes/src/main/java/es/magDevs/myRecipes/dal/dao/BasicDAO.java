@@ -15,9 +15,11 @@
  */
 package es.magDevs.myRecipes.dal.dao;
 
+import java.util.Collection;
 import java.util.List;
 
 import es.magDevs.myRecipes.dal.be.BasicBean;
+import es.magDevs.myRecipes.dal.dao.AbstractDAO.RowConsumer;
 
 /**
  * Intefaz que define operaciones basicas: crear, modificar, listar, borrar
@@ -30,10 +32,95 @@ public interface BasicDAO<BEAN extends BasicBean> {
 	List<BEAN> getList() throws Exception;
 	BEAN getById(Long id) throws Exception;
 
+	/**
+	 * Obtiene los beans con los IDs indicados con el menor numero de
+	 * consultas posible, en lugar de una por ID
+	 * 
+	 * @param ids IDs de los beans
+	 * @return beans encontrados, sin un orden determinado
+	 */
+	List<BEAN> getByIds(Collection<Long> ids) throws Exception;
+
+	/**
+	 * Recorre todos los beans que cumplen el filtro sin cargarlos en memoria,
+	 * pasandolos uno a uno al consumidor segun se leen de la base de datos
+	 * 
+	 * @param filtro   bean con los datos por los que filtrar
+	 * @param consumer consumidor de cada bean, no puede usar la misma conexion
+	 */
+	void forEach(BEAN filtro, RowConsumer<BEAN> consumer) throws Exception;
+
+	/**
+	 * Obtiene una pagina de beans que cumplen el filtro ordenados por ID,
+	 * empezando despues del ID indicado. El coste es el mismo para cualquier
+	 * pagina porque se busca directamente por la clave primaria
+	 * 
+	 * @param filtro  bean con los datos por los que filtrar
+	 * @param afterId ultimo ID de la pagina anterior, <code>null</code> para la
+	 *                primera pagina
+	 * @param size    numero maximo de beans de la pagina
+	 * @return beans de la pagina, si hay menos de <code>size</code> es la
+	 *         ultima
+	 */
+	List<BEAN> getPage(BEAN filtro, Long afterId, int size) throws Exception;
+
+	/**
+	 * Obtiene un rango de beans que cumplen el filtro con LIMIT y OFFSET. Si el
+	 * DAO no fija una ordenacion se ordena por ID. Para recorrer muchas
+	 * paginas es mejor {@link #getPage(BasicBean, Long, int)}
+	 * 
+	 * @param filtro bean con los datos por los que filtrar
+	 * @param offset numero de beans a saltar, empezando en 0
+	 * @param size   numero maximo de beans a obtener
+	 * @return beans del rango
+	 */
+	List<BEAN> getRange(BEAN filtro, int offset, int size) throws Exception;
+
+	/**
+	 * Cuenta los beans que cumplen el filtro sin obtenerlos de la base de datos
+	 * 
+	 * @param filtro bean con los datos por los que filtrar
+	 * @return numero de beans que cumplen el filtro
+	 */
+	int count(BEAN filtro) throws Exception;
+
 	void borrar(Long id) throws Exception;
 
 	Long insert(BEAN bean) throws Exception;
 
 	void update(BEAN bean) throws Exception;
 
+	/**
+	 * Inserta todos los beans indicados enviandolos por lotes
+	 * 
+	 * @param beans beans a insertar
+	 * @return IDs generados, en el mismo orden que los beans
+	 */
+	List<Long> insertAll(List<BEAN> beans) throws Exception;
+
+	/**
+	 * Actualiza por ID todos los beans indicados enviandolos por lotes
+	 * 
+	 * @param beans beans a actualizar
+	 */
+	void updateAll(List<BEAN> beans) throws Exception;
+
+	/**
+	 * Inserta el bean o, si ya existe uno con su ID, lo actualiza, en una unica
+	 * sentencia
+	 * 
+	 * @param bean bean a guardar
+	 * @return ID del bean, el generado si no tenia
+	 */
+	Long upsert(BEAN bean) throws Exception;
+
+	/**
+	 * Inserta o actualiza por ID todos los beans indicados enviandolos por
+	 * lotes. Todos deben tener ID, para los nuevos se debe usar
+	 * {@link #insertAll(List)}
+	 * 
+	 * @param beans beans a guardar
+	 */
+	void upsertAll(List<BEAN> beans) throws Exception;
+
 }
@@ -0,0 +1,289 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Convierte tuplas de un {@link ResultSet} en beans y beans en listas de
+ * valores a partir de la lista de columnas de un DAO. Los setters, getters y
+ * lectores de cada columna se resuelven una unica vez por clase de bean y
+ * lista de columnas con {@link MethodHandle}, de forma que al leer cada tupla
+ * no se usa reflexion.
+ * <p>
+ * Cada columna se asocia a la propiedad con el mismo nombre en camel case
+ * (p.ej. <code>tipo_receta</code> con <code>setTipoReceta</code>). La primera
+ * columna leida siempre es el ID.
+ *
+ * @author javier.vaquero
+ *
+ * @param <BEAN> tipo de bean
+ */
+public class BeanMapper<BEAN> {
+
+	private static final MethodType TIPO_SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+	private static final MethodType TIPO_GETTER = MethodType.methodType(Object.class, Object.class);
+	private static final MethodType TIPO_CONSTRUCTOR = MethodType.methodType(Object.class);
+
+	private static final ConcurrentHashMap<List<Object>, BeanMapper<?>> mappers = new ConcurrentHashMap<>();
+
+	/**
+	 * Lee de un {@link ResultSet} el valor de una columna con el tipo adecuado
+	 * para la propiedad del bean, teniendo en cuenta los valores
+	 * <code>null</code>
+	 */
+	private interface ColumnReader {
+		Object read(ResultSet rs, int pos) throws SQLException;
+	}
+
+	private final Class<BEAN> clase;
+	private final MethodHandle constructor;
+	// Setters y lectores del ID y de cada columna, en el orden de la select
+	private final MethodHandle[] setters;
+	private final ColumnReader[] readers;
+	// Getters de cada columna sin el ID
+	private final MethodHandle[] getters;
+	private final MethodHandle getterId;
+
+	/**
+	 * Obtiene el mapper para la clase de bean y las columnas indicadas,
+	 * construyendolo solo la primera vez
+	 *
+	 * @param clase    clase del bean, debe tener constructor publico sin
+	 *                 parametros
+	 * @param columnas columnas de la tabla sin el ID
+	 * @return mapper
+	 */
+	@SuppressWarnings("unchecked")
+	public static <BEAN> BeanMapper<BEAN> get(Class<BEAN> clase, List<String> columnas) {
+		List<Object> clave = Arrays.asList(clase, columnas);
+		BeanMapper<?> mapper = mappers.get(clave);
+		if (mapper == null) {
+			mapper = mappers.computeIfAbsent(clave, c -> new BeanMapper<>(clase, columnas));
+		}
+		return (BeanMapper<BEAN>) mapper;
+	}
+
+	private BeanMapper(Class<BEAN> clase, List<String> columnas) {
+		this.clase = clase;
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		try {
+			constructor = lookup.findConstructor(clase, MethodType.methodType(void.class)).asType(TIPO_CONSTRUCTOR);
+			setters = new MethodHandle[columnas.size() + 1];
+			readers = new ColumnReader[columnas.size() + 1];
+			getters = new MethodHandle[columnas.size()];
+
+			Method setterId = findSetter("id");
+			setters[0] = lookup.unreflect(setterId).asType(TIPO_SETTER);
+			readers[0] = getReader(setterId.getParameterTypes()[0]);
+			getterId = lookup.unreflect(findGetter("id")).asType(TIPO_GETTER);
+			for (int i = 0; i < columnas.size(); i++) {
+				Method setter = findSetter(columnas.get(i));
+				setters[i + 1] = lookup.unreflect(setter).asType(TIPO_SETTER);
+				readers[i + 1] = getReader(setter.getParameterTypes()[0]);
+				getters[i] = lookup.unreflect(findGetter(columnas.get(i))).asType(TIPO_GETTER);
+			}
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new IllegalArgumentException("No se puede construir el mapper de " + clase.getName() + " para las columnas " + columnas, e);
+		}
+	}
+
+	/**
+	 * Crea un bean con los datos de la tupla actual del {@link ResultSet}. El
+	 * ID debe estar en la primera posicion y el resto de columnas a
+	 * continuacion en el mismo orden que las columnas del mapper
+	 *
+	 * @param rs {@link ResultSet} posicionado en la tupla a leer
+	 * @return bean con los datos rellenados
+	 * @throws SQLException
+	 */
+	@SuppressWarnings("unchecked")
+	public BEAN read(ResultSet rs) throws SQLException {
+		try {
+			Object bean = constructor.invokeExact();
+			for (int i = 0; i < setters.length; i++) {
+				setters[i].invokeExact(bean, readers[i].read(rs, i + 1));
+			}
+			return (BEAN) bean;
+		} catch (SQLException | RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new SQLException("Error al rellenar un bean " + clase.getName(), e);
+		}
+	}
+
+	/**
+	 * Obtiene los valores del bean sin el ID, en el mismo orden que las
+	 * columnas del mapper
+	 *
+	 * @param bean bean con los datos
+	 * @return lista con los valores
+	 */
+	public List<Object> getValores(BEAN bean) {
+		List<Object> valores = new ArrayList<>(getters.length + 1);
+		try {
+			for (MethodHandle getter : getters) {
+				valores.add((Object) getter.invokeExact((Object) bean));
+			}
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException("Error al obtener los valores de un bean " + clase.getName(), e);
+		}
+		return valores;
+	}
+
+	/**
+	 * Crea una copia del bean con el ID y los valores de las columnas del
+	 * mapper
+	 *
+	 * @param bean bean a copiar
+	 * @return copia del bean
+	 */
+	@SuppressWarnings("unchecked")
+	public BEAN copiar(BEAN bean) {
+		try {
+			Object copia = constructor.invokeExact();
+			setters[0].invokeExact(copia, (Object) getterId.invokeExact((Object) bean));
+			for (int i = 0; i < getters.length; i++) {
+				setters[i + 1].invokeExact(copia, (Object) getters[i].invokeExact((Object) bean));
+			}
+			return (BEAN) copia;
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException("Error al copiar un bean " + clase.getName(), e);
+		}
+	}
+
+	/**
+	 * Obtiene el ID del bean
+	 *
+	 * @param bean bean con los datos
+	 * @return ID del bean
+	 */
+	public Object getId(BEAN bean) {
+		try {
+			return (Object) getterId.invokeExact((Object) bean);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException("Error al obtener el ID de un bean " + clase.getName(), e);
+		}
+	}
+
+	private Method findSetter(String columna) throws NoSuchMethodException {
+		String nombre = "set" + toPropiedad(columna);
+		for (Method metodo : clase.getMethods()) {
+			if (metodo.getName().equals(nombre) && metodo.getParameterCount() == 1 && !Modifier.isStatic(metodo.getModifiers())) {
+				return metodo;
+			}
+		}
+		throw new NoSuchMethodException(clase.getName() + "." + nombre);
+	}
+
+	private Method findGetter(String columna) throws NoSuchMethodException {
+		String propiedad = toPropiedad(columna);
+		try {
+			return clase.getMethod("get" + propiedad);
+		} catch (NoSuchMethodException e) {
+			return clase.getMethod("is" + propiedad);
+		}
+	}
+
+	/**
+	 * Convierte un nombre de columna (con guiones bajos) en el nombre de
+	 * propiedad usado en getters y setters
+	 */
+	private static String toPropiedad(String columna) {
+		StringBuilder propiedad = new StringBuilder(columna.length());
+		boolean mayuscula = true;
+		for (char c : columna.toCharArray()) {
+			if (c == '_') {
+				mayuscula = true;
+			} else {
+				propiedad.append(mayuscula ? Character.toUpperCase(c) : c);
+				mayuscula = false;
+			}
+		}
+		return propiedad.toString();
+	}
+
+	/**
+	 * Obtiene el lector de columnas para el tipo de la propiedad, usando los
+	 * metodos primitivos del {@link ResultSet} y comprobando
+	 * {@link ResultSet#wasNull()}. Las propiedades de tipo primitivo no admiten
+	 * <code>null</code>, asi que un NULL de SQL se lee como su valor por
+	 * defecto (0 o <code>false</code>), igual que en JDBC
+	 */
+	private static ColumnReader getReader(Class<?> tipo) {
+		if (tipo == long.class) {
+			return ResultSet::getLong;
+		} else if (tipo == int.class) {
+			return ResultSet::getInt;
+		} else if (tipo == double.class) {
+			return ResultSet::getDouble;
+		} else if (tipo == boolean.class) {
+			return ResultSet::getBoolean;
+		} else if (tipo.isPrimitive()) {
+			Class<?> envoltorio = MethodType.methodType(tipo).wrap().returnType();
+			Object defecto = Array.get(Array.newInstance(tipo, 1), 0);
+			return (rs, pos) -> {
+				Object valor = rs.getObject(pos, envoltorio);
+				return valor == null ? defecto : valor;
+			};
+		} else if (tipo == Long.class) {
+			return (rs, pos) -> {
+				long valor = rs.getLong(pos);
+				return rs.wasNull() ? null : valor;
+			};
+		} else if (tipo == Integer.class) {
+			return (rs, pos) -> {
+				int valor = rs.getInt(pos);
+				return rs.wasNull() ? null : valor;
+			};
+		} else if (tipo == Double.class) {
+			return (rs, pos) -> {
+				double valor = rs.getDouble(pos);
+				return rs.wasNull() ? null : valor;
+			};
+		} else if (tipo == Boolean.class) {
+			return (rs, pos) -> {
+				boolean valor = rs.getBoolean(pos);
+				return rs.wasNull() ? null : valor;
+			};
+		} else if (tipo == String.class) {
+			return ResultSet::getString;
+		} else if (tipo == BigDecimal.class) {
+			return ResultSet::getBigDecimal;
+		} else if (tipo == byte[].class) {
+			return ResultSet::getBytes;
+		}
+		return (rs, pos) -> rs.getObject(pos, tipo);
+	}
+}
@@ -0,0 +1,347 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool de conexiones sencillo para cuando no hay un datasource del servidor,
+ * por ejemplo con Jetty embebido o desde linea de comandos. Mantiene entre un
+ * minimo y un maximo de conexiones abiertas con {@link DriverManager}, abre
+ * el minimo al crearse, comprueba las conexiones que llevan tiempo paradas
+ * antes de entregarlas y cierra las que sobran cuando estan ociosas. Si estan
+ * todas en uso se espera como mucho el tiempo configurado, o lo que le quede
+ * al {@link Deadline} de la operacion si es menos.
+ * <p>
+ * Las conexiones entregadas se devuelven al pool al cerrarlas.
+ *
+ * @author javier.vaquero
+ *
+ */
+public class ConnectionPool {
+
+	final static Logger log = LoggerFactory.getLogger(ConnectionPool.class);
+
+	/**
+	 * Numero minimo de conexiones por defecto
+	 */
+	public static final int MINIMO_DEFECTO = 2;
+
+	/**
+	 * Numero maximo de conexiones por defecto
+	 */
+	public static final int MAXIMO_DEFECTO = 10;
+
+	/**
+	 * Segundos por defecto que una conexion puede estar ociosa antes de
+	 * cerrarla, si hay mas del minimo
+	 */
+	public static final long OCIOSA_DEFECTO = 300;
+
+	/**
+	 * Milisegundos por defecto que se espera a que quede libre una conexion
+	 */
+	public static final long ESPERA_DEFECTO = 5000;
+
+	// Milisegundos que una conexion puede estar parada sin comprobarla al entregarla
+	private static final long SIN_VALIDAR = 1000;
+
+	private final String url;
+	private final String user;
+	private final String pass;
+	private final int minimo;
+	private final int maximo;
+	private final long ociosaNanos;
+	private final long esperaMillis;
+
+	// Conexiones libres, la ultima devuelta es la primera que se entrega
+	private final ConcurrentLinkedDeque<Libre> libres = new ConcurrentLinkedDeque<>();
+	// Un permiso por cada conexion que se puede entregar
+	private final Semaphore permisos;
+	private final AtomicInteger abiertas = new AtomicInteger();
+	private final AtomicLong esperasAgotadas = new AtomicLong();
+	private final ScheduledExecutorService limpieza;
+	private volatile boolean cerrado = false;
+
+	private static class Libre {
+		private final Connection con;
+		private final long abierta;
+		private final long devuelta = System.nanoTime();
+
+		private Libre(Connection con, long abierta) {
+			this.con = con;
+			this.abierta = abierta;
+		}
+	}
+
+	/**
+	 * Crea el pool con la configuracion indicada y abre el minimo de
+	 * conexiones. Las propiedades son las de <code>config.properties</code>:
+	 * <code>url</code>, <code>user</code> y <code>pass</code>, y opcionalmente
+	 * <code>pool.minimo</code>, <code>pool.maximo</code>,
+	 * <code>pool.ociosa</code> (segundos) y <code>pool.espera</code>
+	 * (milisegundos)
+	 *
+	 * @param propiedades configuracion de la conexion y del pool
+	 */
+	public ConnectionPool(Properties propiedades) {
+		url = propiedades.getProperty("url");
+		user = propiedades.getProperty("user");
+		pass = propiedades.getProperty("pass");
+		maximo = Math.max(1, Integer.parseInt(propiedades.getProperty("pool.maximo", "" + MAXIMO_DEFECTO)));
+		minimo = Math.min(maximo, Math.max(0, Integer.parseInt(propiedades.getProperty("pool.minimo", "" + MINIMO_DEFECTO))));
+		ociosaNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(propiedades.getProperty("pool.ociosa", "" + OCIOSA_DEFECTO)));
+		esperaMillis = Long.parseLong(propiedades.getProperty("pool.espera", "" + ESPERA_DEFECTO));
+		permisos = new Semaphore(maximo, true);
+
+		for (int i = 0; i < minimo; i++) {
+			try {
+				libres.addLast(abrir());
+			} catch (SQLException e) {
+				log.error("Error abriendo las conexiones iniciales del pool", e);
+				break;
+			}
+		}
+		limpieza = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread hilo = new Thread(r, "myrecipes-pool");
+			hilo.setDaemon(true);
+			return hilo;
+		});
+		long periodo = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(ociosaNanos) / 2);
+		limpieza.scheduleWithFixedDelay(this::limpiar, periodo, periodo, TimeUnit.SECONDS);
+		log.info("Pool de conexiones directas creado con " + abiertas.get() + " conexiones, maximo " + maximo);
+	}
+
+	/**
+	 * Obtiene una conexion del pool, esperando si estan todas en uso
+	 *
+	 * @return conexion, al cerrarla se devuelve al pool
+	 * @throws SQLException si no queda libre ninguna conexion a tiempo o no se
+	 *                      puede abrir
+	 */
+	public Connection getConnection() throws SQLException {
+		if (cerrado) {
+			throw new SQLException("El pool de conexiones esta cerrado");
+		}
+		// No se espera mas de lo que le queda a la operacion que pide la conexion
+		long restante = Deadline.getRestante();
+		long espera = restante >= 0 ? Math.min(esperaMillis, restante) : esperaMillis;
+		try {
+			if (!permisos.tryAcquire(espera, TimeUnit.MILLISECONDS)) {
+				esperasAgotadas.incrementAndGet();
+				throw new SQLException("No hay conexiones libres en el pool tras esperar " + espera + " ms");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrumpido esperando una conexion del pool", e);
+		}
+		try {
+			Libre libre;
+			while ((libre = libres.pollLast()) != null) {
+				if (isValida(libre)) {
+					return envolver(libre);
+				}
+				descartar(libre);
+			}
+			return envolver(abrir());
+		} catch (SQLException | RuntimeException e) {
+			permisos.release();
+			throw e;
+		}
+	}
+
+	private boolean isValida(Libre libre) {
+		if (System.nanoTime() - libre.devuelta < TimeUnit.MILLISECONDS.toNanos(SIN_VALIDAR)) {
+			return true;
+		}
+		try {
+			return libre.con.isValid(2);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private Libre abrir() throws SQLException {
+		Connection con = DriverManager.getConnection(url, user, pass);
+		abiertas.incrementAndGet();
+		return new Libre(con, System.nanoTime());
+	}
+
+	private void descartar(Libre libre) {
+		abiertas.decrementAndGet();
+		PoolMetrics.registrarVida(System.nanoTime() - libre.abierta);
+		try {
+			libre.con.close();
+		} catch (SQLException e) {
+			log.debug("Error cerrando conexion descartada del pool", e);
+		}
+	}
+
+	/**
+	 * Devuelve una conexion al pool, dejandola como recien abierta. Si la
+	 * conexion fisica se ha cerrado o falla al restaurarla se descarta
+	 */
+	private void devolver(Libre entregada) {
+		Connection con = entregada.con;
+		try {
+			boolean valida = !con.isClosed();
+			if (valida && !con.getAutoCommit()) {
+				con.rollback();
+				con.setAutoCommit(true);
+			}
+			if (valida && con.isReadOnly()) {
+				con.setReadOnly(false);
+			}
+			if (valida && cerrado) {
+				descartar(entregada);
+			} else if (valida) {
+				libres.addLast(new Libre(con, entregada.abierta));
+			} else {
+				abiertas.decrementAndGet();
+				PoolMetrics.registrarVida(System.nanoTime() - entregada.abierta);
+			}
+		} catch (SQLException e) {
+			log.warn("Conexion devuelta al pool en mal estado, se descarta", e);
+			descartar(entregada);
+		} finally {
+			permisos.release();
+		}
+	}
+
+	/**
+	 * Cierra el pool al parar la aplicacion: para el hilo de limpieza y cierra
+	 * las conexiones libres. Las que estan en uso se cierran al devolverlas
+	 */
+	public void cerrar() {
+		cerrado = true;
+		limpieza.shutdownNow();
+		Libre libre;
+		while ((libre = libres.pollLast()) != null) {
+			descartar(libre);
+		}
+		log.info("Pool de conexiones directas cerrado");
+	}
+
+	/**
+	 * Cierra las conexiones ociosas que sobran y vuelve a abrir hasta el
+	 * minimo
+	 */
+	private void limpiar() {
+		try {
+			long limite = System.nanoTime() - ociosaNanos;
+			Iterator<Libre> it = libres.iterator();
+			while (it.hasNext() && abiertas.get() > minimo) {
+				Libre libre = it.next();
+				if (libre.devuelta - limite < 0 && libres.remove(libre)) {
+					descartar(libre);
+				}
+			}
+			while (!cerrado && abiertas.get() < minimo) {
+				libres.addFirst(abrir());
+			}
+		} catch (Exception e) {
+			log.error("Error en la limpieza del pool de conexiones", e);
+		}
+	}
+
+	/**
+	 * Envuelve la conexion para que al cerrarla se devuelva al pool. Una vez
+	 * cerrada ya no se puede usar
+	 */
+	private Connection envolver(Libre libre) {
+		Connection con = libre.con;
+		InvocationHandler handler = new InvocationHandler() {
+			private boolean cerrada = false;
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				switch (method.getName()) {
+				case "close":
+					if (!cerrada) {
+						cerrada = true;
+						devolver(libre);
+					}
+					return null;
+				case "isClosed":
+					// Aunque la conexion fisica haya muerto, hay que cerrarla para devolver el permiso
+					return cerrada;
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "toString":
+					return "Conexion del pool " + con;
+				default:
+					if (cerrada) {
+						throw new SQLException("Conexion ya devuelta al pool");
+					}
+					try {
+						return method.invoke(con, args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				}
+			}
+		};
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, handler);
+	}
+
+	/**
+	 * @return numero maximo de conexiones
+	 */
+	public int getMaximo() {
+		return maximo;
+	}
+
+	/**
+	 * @return numero de conexiones abiertas, en uso o libres
+	 */
+	public int getAbiertas() {
+		return abiertas.get();
+	}
+
+	/**
+	 * @return numero de conexiones entregadas y aun no devueltas
+	 */
+	public int getEnUso() {
+		return maximo - permisos.availablePermits();
+	}
+
+	/**
+	 * @return numero de veces que se ha agotado la espera por una conexion
+	 */
+	public long getEsperasAgotadas() {
+		return esperasAgotadas.get();
+	}
+}
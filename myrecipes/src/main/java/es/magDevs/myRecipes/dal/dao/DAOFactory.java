@@ -17,8 +17,13 @@ package es.magDevs.myRecipes.dal.dao;
 
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.HashMap;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
@@ -28,31 +33,84 @@ import javax.sql.DataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import es.magDevs.myRecipes.dal.be.RecetaBean;
-
+/**
+ * Factoria de DAOs. Cada instancia guarda el estado de una unica llamada (su
+ * conexion y su papel en la transaccion) y no se debe compartir entre
+ * hilos, por eso sus metodos no estan sincronizados. La transaccion en curso
+ * se comparte entre las factorias del mismo hilo a traves de
+ * {@link #transactionThread}.
+ * 
+ * @author javier.vaquero
+ *
+ */
 public abstract class DAOFactory {
 
 	public static final int MYSQL = 1;
 	
 	protected static String dataSource = "MySQLDB";
 	
-	protected static int numConexiones = 0;
+	protected static final AtomicInteger numConexiones = new AtomicInteger();
 
-	protected static int numFactorias = 0;
+	protected static final AtomicInteger numFactorias = new AtomicInteger();
 
-	// Conexion, sin dataSource
+	// Conexion de esta factoria, solo la usa el hilo que la ha creado
 	protected Connection connection = null;	
 	// primer intento de conexión
 	protected static boolean bPriveraVez = true;
 
-	// Objeto que mantiene la conexión asociada a la transacción actual para cada hilo de ejecución.
-	// En caso de no estar en medio de una transacción, no almacenará referencia a conexión alguna.
+	// Objeto que mantiene la transacción actual para cada hilo de ejecución.
+	// En caso de no estar en medio de una transacción, no almacenará referencia a transacción alguna.
 	// Las propiedades de este objeto son locales a cada hilo, impidiendo su acceso o modificación por
 	// parte de otros hilos. Asimismo, el objeto funciona como una variable global para el hilo actual
-	protected static final ThreadLocal<Connection> transactionThread = new ThreadLocal<Connection>();
+	protected static final ThreadLocal<Transaccion> transactionThread = new ThreadLocal<Transaccion>();
+
+	/**
+	 * Transaccion abierta en un hilo
+	 */
+	protected static class Transaccion {
+		private final Connection conexion;
+		// Transaccion exterior en suspenso mientras dura esta (REQUIRES_NEW)
+		private final Transaccion suspendida;
+		// Numero de transacciones abiertas sobre esta conexion, incluida ella misma
+		private int profundidad = 1;
+		// Tablas modificadas para la QueryCache, apartadas mientras esta en suspenso
+		private Set<String> tablasCache = null;
+
+		private Transaccion(Connection conexion, Transaccion suspendida) {
+			this.conexion = conexion;
+			this.suspendida = suspendida;
+		}
+	}
+
+	/**
+	 * Papel de esta factoria en la transaccion del hilo
+	 */
+	private enum Rol {
+		// Ha iniciado la transaccion, la confirma o cancela
+		PROPIA,
+		// Se ha unido a la transaccion exterior
+		UNIDA,
+		// Ha creado un savepoint en la transaccion exterior
+		ANIDADA
+	}
 
 	// Control de transacciones anidadas para evitar la confirmación o cancelación incorrecta de cambios
-	protected boolean transaccionAnidada = false;
+	private Rol rol = null;
+	private Savepoint savepoint = null;
+	// Si la transaccion iniciada por esta factoria es de solo lectura
+	private boolean soloLectura = false;
+	// Aislamiento de la conexion antes de la transaccion de solo lectura, para restaurarlo
+	private int aislamientoAnterior = Connection.TRANSACTION_NONE;
+	
+	// Si las nuevas conexiones fuera de transaccion pueden ir a una replica de solo lectura
+	protected boolean lectura = false;
+	
+	// BL que usa la factoria y momento en el que obtuvo su conexion, para las metricas
+	protected String origen = null;
+	protected long inicioConexion = 0;
+	
+	// Anotacion de la conexion en el detector de fugas, mientras no se cierra
+	protected LeakDetector.Prestamo prestamo = null;
 	
 	protected String dbaFileProperties = "dbal.properties";
 
@@ -60,13 +118,9 @@ public abstract class DAOFactory {
 	final static Logger logger = LoggerFactory.getLogger(DAOFactory.class);
 
 	// Resources
-	private static HashMap<String, ResourceBundle> properties;
+	private static final Map<String, ResourceBundle> properties = new ConcurrentHashMap<String, ResourceBundle>();
 	
-	private static DataSource ds;
-
-	static {
-		properties = new HashMap<String, ResourceBundle>();
-	}
+	private static volatile DataSource ds;
 
 	// Metodos DAO
 	/*****************************************/
@@ -80,6 +134,7 @@ public abstract class DAOFactory {
 		switch (iType) {
 			
 			case (MYSQL):
+				numFactorias.incrementAndGet();
 				return new MySqlDAOFactory();
 			
 			default:
@@ -87,8 +142,16 @@ public abstract class DAOFactory {
 		}
 	}
 	
-	private static synchronized DataSource getDataSource() throws NamingException {
-		if (ds == null) {
+	private static DataSource getDataSource() throws NamingException {
+		DataSource dataSourceActual = ds;
+		if (dataSourceActual != null) {
+			// Una vez obtenido el datasource no hace falta bloquear
+			return dataSourceActual;
+		}
+		synchronized (DAOFactory.class) {
+			if (ds != null) {
+				return ds;
+			}
 			Context envTomcatContext = null;
 			Context dsTomcatContext = null;
 			
@@ -115,29 +178,37 @@ public abstract class DAOFactory {
 		return ds;
 	}
 
-	public synchronized Connection getConnection() throws Exception {
+	public Connection getConnection() throws Exception {
 		
 		// Si el hilo actual está en medio de una transacción, devolvemos la conexión actual
 		// correspondiente (evitaremos su modificación hasta la finalización de la misma)
 		if (isTransaction()) {
 			
 			logger.debug("Recuperando la conexión para la transacción del hilo " + Thread.currentThread().getName());
-			connection = transactionThread.get();
+			connection = transactionThread.get().conexion;
 		
 		// Si no estamos en una transacción, comprobamos si la conexión actual es nula o si
 		// está cerrada (no podemos reutilizarla) para obtener una nueva
 		} else if (connection == null || connection.isClosed()) {
 			try {
-				connection = getDataSource().getConnection();
-				numConexiones++;
-
-				if (Thread.currentThread().getStackTrace().length > 5) {
-					StackTraceElement stElem = Thread.currentThread().getStackTrace()[5];
-					logger.debug("Creamos una conexion - POOL TOMCAT, hay " + numConexiones
-							+ ". Origen: " + stElem.getClassName() + "." + stElem.getMethodName() + " ("
-							+ stElem.getLineNumber() + ")");
-				} else {
-					logger.debug("Creamos una conexion, hay " + numConexiones);
+				// Si la conexion anterior se ha cerrado por otra via, se devuelve igualmente para liberar el pool
+				closeConnection();
+				long inicioEspera = PoolMetrics.inicioEspera();
+				try {
+					connection = lectura ? ReplicaRouter.getConnection() : null;
+					if (connection == null) {
+						connection = abrirConexion();
+					}
+				} finally {
+					PoolMetrics.finEspera(inicioEspera);
+				}
+				inicioConexion = System.nanoTime();
+				int conexiones = numConexiones.incrementAndGet();
+				StatementCache.registrar(connection);
+				// El origen se anota sin recorrer la pila, solo se captura en algunas conexiones
+				prestamo = LeakDetector.registrar(origen);
+				if (logger.isDebugEnabled()) {
+					logger.debug("Creamos una conexion, hay " + conexiones + ". Origen: " + origen);
 				}
 			} catch (NamingException e) {
 				throw e;
@@ -148,17 +219,33 @@ public abstract class DAOFactory {
 		return connection;
 	}
 
-	public synchronized void closeConnection() {
+	/**
+	 * Abre una conexion nueva con la base de datos principal, por defecto del
+	 * datasource configurado en JNDI
+	 * 
+	 * @return conexion nueva
+	 */
+	protected Connection abrirConexion() throws Exception {
+		return getDataSource().getConnection();
+	}
+
+	public void closeConnection() {
 		boolean cierra = true;
 		try {
-			// Cerramos la conexión si existe, no está cerrada y no estamos en medio de una transacción
-			if (connection != null && !connection.isClosed() && !isTransaction()) {
+			// Cerramos la conexión si existe y no es la de una transacción en curso. Aunque
+			// este cerrada por un error se cierra igualmente, para que el pool la recupere
+			if (connection != null && !isConexionTransaccion(connection)) {
 				if (bPriveraVez) {
 					logger.debug("Se llama a cerrar conexión con directa");
 				}
+				StatementCache.liberar(connection);
+				ReplicaRouter.liberar(connection);
 				connection.close();
 				connection = null;
-				numConexiones--;
+				numConexiones.decrementAndGet();
+				PoolMetrics.registrarRetencion(origen, System.nanoTime() - inicioConexion);
+				LeakDetector.liberar(prestamo);
+				prestamo = null;
 			}
 		} catch (Exception err) {
 			cierra = false;
@@ -166,41 +253,73 @@ public abstract class DAOFactory {
 		} finally {
 			if (!cierra) {
 				logger.debug("Problema cerrando conexión, la considero cerrada");
-				numConexiones--;
+				ReplicaRouter.liberar(connection);
+				connection = null;
+				numConexiones.decrementAndGet();
+				LeakDetector.liberar(prestamo);
+				prestamo = null;
 			}
 		}
 	}
 
 	/**
-	 * Establece inicio de transacción
+	 * Establece inicio de transacción, uniendose a la transaccion abierta en el
+	 * hilo si la hay
 	 * 
 	 * @return
 	 */
-	public synchronized boolean beginTransaction() {
+	public boolean beginTransaction() {
+		return beginTransaction(Propagacion.REQUIRED);
+	}
+
+	/**
+	 * Establece inicio de transacción con la propagacion indicada
+	 * 
+	 * @param propagacion que hacer si ya hay una transaccion abierta en el hilo
+	 * @return <code>true</code> si se ha iniciado correctamente
+	 */
+	public boolean beginTransaction(Propagacion propagacion) {
 		boolean correcto = true;
 		
 		try {
+			Transaccion actual = transactionThread.get();
 
-			// En caso estar en medio de una transacción abierta, marcamos el anidamiento para evitar cambios incorrectos
-			if (isTransaction()) {
+			// En caso estar en medio de una transacción abierta, nos unimos a ella o creamos un savepoint
+			if (actual != null && propagacion != Propagacion.REQUIRES_NEW) {
 				
-				connection = transactionThread.get();
-				
-				logger.info("Transacción anidada en el hilo " + Thread.currentThread().getName());
-				transaccionAnidada = true;
+				connection = actual.conexion;
+				if (propagacion == Propagacion.NESTED) {
+					savepoint = connection.setSavepoint();
+					rol = Rol.ANIDADA;
+				} else {
+					rol = Rol.UNIDA;
+				}
+				actual.profundidad++;
+				logger.info("Transacción anidada (" + propagacion + ", nivel " + actual.profundidad + ") en el hilo " + Thread.currentThread().getName());
 				
 			// En otro caso, iniciamos la transacción del modo habitual y la asociamos al hilo actual para controlarla
 			} else {
-				if (connection == null || connection.isClosed()) {
-					getConnection();
+				if (actual != null) {
+					// La transaccion exterior queda en suspenso, esta usara su propia conexion
+					logger.info("Suspendiendo la transacción del hilo " + Thread.currentThread().getName());
+					transactionThread.remove();
+					actual.tablasCache = QueryCache.suspenderTransaccion();
+				}
+				try {
+					if (connection == null || connection.isClosed()) {
+						getConnection();
+					}
+					
+					connection.setAutoCommit(false);
+					connection.setTransactionIsolation(java.sql.Connection.TRANSACTION_READ_COMMITTED);
+				} catch (Exception e) {
+					restaurar(actual);
+					throw e;
 				}
-				
-				connection.setAutoCommit(false);
-				connection.setTransactionIsolation(java.sql.Connection.TRANSACTION_READ_COMMITTED);
 				
 				logger.info("Asignando la conexión para la transacción del hilo " + Thread.currentThread().getName());
-				transaccionAnidada = false;
-				transactionThread.set(connection);
+				rol = Rol.PROPIA;
+				transactionThread.set(new Transaccion(connection, actual));
 			}
 			
 		} catch (Exception e) {
@@ -211,32 +330,135 @@ public abstract class DAOFactory {
 		return correcto;
 	}
 
+	/**
+	 * Inicia una transaccion de solo lectura con una instantanea consistente:
+	 * todas las consultas ven los datos tal y como estaban al iniciarla, e
+	 * InnoDB no le asigna ID de transaccion. La conexion puede ir a una
+	 * replica. Si ya hay una transaccion abierta en el hilo se une a ella.
+	 * Dentro no se puede escribir, salvo en tablas temporales: por eso la
+	 * conexion no se marca como de solo lectura en el driver, que rechazaria
+	 * tambien estas, y la restriccion la aplica el servidor
+	 * 
+	 * @return <code>true</code> si se ha iniciado correctamente
+	 */
+	public boolean beginReadOnlyTransaction() {
+		if (isTransaction()) {
+			return beginTransaction(Propagacion.REQUIRED);
+		}
+		boolean correcto = true;
+		
+		try {
+			lectura = true;
+			if (connection == null || connection.isClosed()) {
+				getConnection();
+			}
+			// Los pools no restauran el aislamiento, se deja como estaba al terminar
+			aislamientoAnterior = connection.getTransactionIsolation();
+			soloLectura = true;
+			try {
+				connection.setTransactionIsolation(java.sql.Connection.TRANSACTION_REPEATABLE_READ);
+				connection.setAutoCommit(false);
+				try (Statement stmt = connection.createStatement()) {
+					// La instantanea se toma ya, no en la primera consulta
+					stmt.execute("START TRANSACTION WITH CONSISTENT SNAPSHOT, READ ONLY");
+				}
+			} catch (Exception e) {
+				// La conexion no debe volver al pool sin autocommit o con otro aislamiento
+				try {
+					restaurarConexion();
+				} catch (Exception e2) {
+					logger.error("Error restaurando la conexión", e2);
+				}
+				throw e;
+			}
+			
+			logger.debug("Asignando la conexión para la transacción de solo lectura del hilo " + Thread.currentThread().getName());
+			rol = Rol.PROPIA;
+			transactionThread.set(new Transaccion(connection, null));
+		} catch (Exception e) {
+			logger.error("Error iniciando transacción de solo lectura", e);
+			correcto = false;
+		}
+		
+		return correcto;
+	}
+
+	/**
+	 * Vuelve a dejar la conexion en modo autocommit y, tras una transaccion de
+	 * solo lectura, con el aislamiento que tenia antes
+	 */
+	private void restaurarConexion() throws SQLException {
+		try {
+			connection.setAutoCommit(true);
+		} finally {
+			if (soloLectura) {
+				soloLectura = false;
+				connection.setTransactionIsolation(aislamientoAnterior);
+			}
+		}
+	}
+
+	/**
+	 * Vuelve a dejar como transaccion del hilo la que estaba en suspenso, con
+	 * sus tablas pendientes de invalidar en la {@link QueryCache}
+	 */
+	private static void restaurar(Transaccion suspendida) {
+		if (suspendida != null) {
+			transactionThread.set(suspendida);
+			QueryCache.reanudarTransaccion(suspendida.tablasCache);
+			suspendida.tablasCache = null;
+		} else {
+			transactionThread.remove();
+		}
+	}
+
 	/**
 	 * Finaliza una transacción
 	 * 
 	 * @return
 	 */
-	public synchronized boolean endTransaction() {
+	public boolean endTransaction() {
 		boolean correcto = true;
-		// Si estamos en una transacción anidada, no la finalizaremos salvo que sea la transacción inicial
-		if (!transaccionAnidada) {
+		// Solo finaliza la transaccion quien la ha iniciado
+		if (rol == Rol.PROPIA) {
 			try {
-				connection.setAutoCommit(true);
+				restaurarConexion();
 			} catch (Exception e) {
 				logger.error("Error finalizando transacción", e);
 				correcto = false;
 			} finally {
 				logger.info("Quitando la conexión para la transacción del hilo " + Thread.currentThread().getName());
-				transactionThread.remove();
+				// Lo leido por otros hilos durante la transaccion puede estar obsoleto. Solo se
+				// invalidan sus tablas, las de la transaccion en suspenso se invalidaran con ella
+				QueryCache.finTransaccion();
+				Transaccion actual = transactionThread.get();
+				restaurar(actual != null ? actual.suspendida : null);
+				rol = null;
+			}
+		} else if (rol != null) {
+			Transaccion actual = transactionThread.get();
+			if (actual != null) {
+				actual.profundidad--;
 			}
+			rol = null;
+			savepoint = null;
 		}
 		return correcto;
 	}
 
-	public synchronized boolean commit() {
+	public boolean commit() {
 		boolean correcto = true;
-		// Si estamos en una transacción anidada, no confirmaremos los cambios salvo que sea la transacción inicial
-		if (!transaccionAnidada) {
+		if (rol == Rol.ANIDADA) {
+			// Los cambios del savepoint pasan a formar parte de la transaccion exterior
+			try {
+				connection.releaseSavepoint(savepoint);
+			} catch (SQLException e) {
+				logger.error("Error liberando savepoint", e);
+				correcto = false;
+			} finally {
+				endTransaction();
+			}
+		} else if (rol == Rol.PROPIA) {
 			try {
 				connection.commit();
 			} catch (SQLException e) {
@@ -245,14 +467,26 @@ public abstract class DAOFactory {
 			} finally {
 				endTransaction();
 			}
+		} else {
+			// Si nos hemos unido a otra transacción, los cambios se confirman con ella
+			endTransaction();
 		}
 		return correcto;
 	}
 
-	public synchronized boolean rollback() {
+	public boolean rollback() {
 		boolean correcto = true;
-		// Si estamos en una transacción anidada, no cancelaremos los cambios salvo que sea la transacción inicial
-		if (!transaccionAnidada) {
+		if (rol == Rol.ANIDADA) {
+			// Solo se deshacen los cambios desde el savepoint, la transaccion exterior sigue
+			try {
+				connection.rollback(savepoint);
+			} catch (SQLException e) {
+				logger.error("Error haciendo rollback al savepoint", e);
+				correcto = false;
+			} finally {
+				endTransaction();
+			}
+		} else if (rol == Rol.PROPIA) {
 			try {
 				connection.rollback();
 			} catch (SQLException e) {
@@ -261,6 +495,9 @@ public abstract class DAOFactory {
 			} finally {
 				endTransaction();
 			}
+		} else {
+			// Si nos hemos unido a otra transacción, la cancelará quien la inició
+			endTransaction();
 		}
 		return correcto;
 	}
@@ -270,9 +507,31 @@ public abstract class DAOFactory {
 	 * 
 	 * @return
 	 */
-	public synchronized boolean isTransaction() {
+	public boolean isTransaction() {
 		return (transactionThread.get() != null);
 	}
+
+	/**
+	 * @return numero de transacciones anidadas abiertas en la transaccion del
+	 *         hilo, 0 si no hay transaccion
+	 */
+	public static int getProfundidad() {
+		Transaccion actual = transactionThread.get();
+		return actual != null ? actual.profundidad : 0;
+	}
+
+	/**
+	 * Indica si la conexion pertenece a la transaccion del hilo o a alguna de
+	 * las que estan en suspenso, en cuyo caso no se debe cerrar
+	 */
+	private static boolean isConexionTransaccion(Connection con) {
+		for (Transaccion transaccion = transactionThread.get(); transaccion != null; transaccion = transaccion.suspendida) {
+			if (transaccion.conexion == con) {
+				return true;
+			}
+		}
+		return false;
+	}
 	
 
 	public static ResourceBundle getProperties(String sKey) {
@@ -297,24 +556,117 @@ public abstract class DAOFactory {
 	 * @return
 	 */
 	public static int getNumConexiones() {
-		return numConexiones;
+		return numConexiones.get();
 	}
 
 	/**
-	 * @return the numFactorias
+	 * @return numero de factorias creadas
 	 */
 	public static int getNumFactorias() {
-		return numFactorias;
+		return numFactorias.get();
+	}
+
+	public boolean isLectura() {
+		return lectura;
+	}
+
+	/**
+	 * Indica si las conexiones que se obtengan fuera de una transaccion solo se
+	 * van a usar para leer, en cuyo caso se pueden obtener de una replica (ver
+	 * {@link ReplicaRouter})
+	 * 
+	 * @param lectura <code>true</code> si solo se va a leer
+	 */
+	public void setLectura(boolean lectura) {
+		this.lectura = lectura;
 	}
 
+	public String getOrigen() {
+		return origen;
+	}
+
+	/**
+	 * Indica que BL usa la factoria, para las metricas de {@link PoolMetrics}
+	 * 
+	 * @param origen nombre de la BL
+	 */
+	public void setOrigen(String origen) {
+		this.origen = origen;
+	}
+
+	/**
+	 * @return numero maximo de conexiones del pool, -1 si no se sabe
+	 */
 	public int getPoolSize(){
-		return -1;
+		return getMaximoConexiones();
 	}
 	
+	/**
+	 * @return conexiones del pool en uso, -1 si no se sabe
+	 */
 	public int getPoolUse(){
+		ConnectionPool pool = MySqlDAOFactory.getConnectionPool();
+		if (pool != null) {
+			return pool.getEnUso();
+		}
+		return getPropiedadDataSource("getNumActive", "getActive");
+	}
+	
+	/**
+	 * @return numero maximo de conexiones del pool, -1 si no se sabe
+	 */
+	public static int getMaximoConexiones() {
+		ConnectionPool pool = MySqlDAOFactory.getConnectionPool();
+		if (pool != null) {
+			return pool.getMaximo();
+		}
+		return getPropiedadDataSource("getMaxTotal", "getMaxActive");
+	}
+	
+	/**
+	 * @return conexiones abiertas y libres en el pool, -1 si no se sabe
+	 */
+	public static int getConexionesLibres() {
+		ConnectionPool pool = MySqlDAOFactory.getConnectionPool();
+		if (pool != null) {
+			return pool.getAbiertas() - pool.getEnUso();
+		}
+		return getPropiedadDataSource("getNumIdle", "getIdle");
+	}
+	
+	/**
+	 * @return hilos esperando a obtener una conexion
+	 */
+	public static int getConexionesPendientes() {
+		return PoolMetrics.getNumPendientes();
+	}
+	
+	/**
+	 * Obtiene un dato del pool del datasource de JNDI. No hay una interfaz
+	 * comun, pero tanto el pool DBCP de Tomcat como tomcat-jdbc tienen estos
+	 * metodos
+	 * 
+	 * @param metodos nombres de los metodos a probar, en orden
+	 * @return valor del primer metodo que exista, -1 si no existe ninguno
+	 */
+	private static int getPropiedadDataSource(String... metodos) {
+		DataSource dataSourceActual = ds;
+		if (dataSourceActual == null) {
+			return -1;
+		}
+		for (String metodo : metodos) {
+			try {
+				Object valor = dataSourceActual.getClass().getMethod(metodo).invoke(dataSourceActual);
+				if (valor instanceof Number) {
+					return ((Number) valor).intValue();
+				}
+			} catch (ReflectiveOperationException e) {
+				// Este pool no tiene el metodo, se prueba el siguiente
+			}
+		}
 		return -1;
 	}
 	
-	public abstract BasicDAO<RecetaBean> getRecetasDao() throws Exception;
+	public abstract RecetasDAO getRecetasDao() throws Exception;
 
 }
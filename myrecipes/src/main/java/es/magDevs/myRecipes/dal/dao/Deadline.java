@@ -0,0 +1,265 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Plazo maximo de la operacion de BL en curso en el hilo. Cada sentencia que
+ * crean los DAO recibe como timeout el tiempo que le queda a la operacion, y
+ * si se agota mientras se ejecuta se cancela, para que una consulta lenta
+ * falle enseguida en vez de retener el hilo de la peticion y la conexion.
+ * <p>
+ * Si se inicia un plazo cuando ya hay uno en curso se mantiene el que vence
+ * antes, asi las operaciones anidadas nunca alargan el de quien las llama.
+ *
+ * @author javier.vaquero
+ *
+ */
+public class Deadline {
+
+	final static Logger log = LoggerFactory.getLogger(Deadline.class);
+
+	/**
+	 * Milisegundos por defecto que puede durar una operacion de BL
+	 */
+	public static final long PLAZO_DEFECTO = 30000;
+
+	/**
+	 * Milisegundos por defecto que puede durar un recorrido de muchos datos,
+	 * como una exportacion, 0 para no limitarlo
+	 */
+	public static final long PLAZO_RECORRIDO_DEFECTO = 0;
+
+	private static volatile long plazoDefecto = PLAZO_DEFECTO;
+	private static volatile long plazoRecorrido = PLAZO_RECORRIDO_DEFECTO;
+
+	// Momento, en System.nanoTime(), en que vence el plazo del hilo
+	private static final ThreadLocal<Long> limite = new ThreadLocal<>();
+
+	private static final AtomicLong agotados = new AtomicLong();
+	private static final AtomicLong cancelados = new AtomicLong();
+
+	private static final ScheduledThreadPoolExecutor vigilancia = new ScheduledThreadPoolExecutor(1, r -> {
+		Thread hilo = Executors.defaultThreadFactory().newThread(r);
+		hilo.setName("myrecipes-plazos");
+		hilo.setDaemon(true);
+		return hilo;
+	});
+
+	static {
+		// Casi todas las sentencias terminan a tiempo, no se deben acumular sus cancelaciones
+		vigilancia.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Inicia un plazo en el hilo, salvo que ya haya uno que venza antes
+	 *
+	 * @param millis milisegundos que puede durar la operacion, 0 para no
+	 *               iniciar ninguno (se mantiene el que hubiera)
+	 * @return plazo que habia antes, que se debe pasar a
+	 *         {@link #restaurar(Long)} al terminar la operacion
+	 */
+	public static Long iniciar(long millis) {
+		Long anterior = limite.get();
+		if (millis <= 0) {
+			return anterior;
+		}
+		long nuevo = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		if (anterior == null || nuevo - anterior < 0) {
+			limite.set(nuevo);
+		}
+		return anterior;
+	}
+
+	/**
+	 * Inicia el plazo por defecto, ver {@link #iniciar(long)}. Si el plazo por
+	 * defecto es 0 no se inicia ninguno
+	 *
+	 * @return plazo que habia antes
+	 */
+	public static Long iniciarDefecto() {
+		return iniciar(plazoDefecto);
+	}
+
+	/**
+	 * Deja el plazo que habia antes de iniciar uno
+	 *
+	 * @param anterior plazo devuelto por {@link #iniciar(long)}
+	 */
+	public static void restaurar(Long anterior) {
+		set(anterior);
+	}
+
+	/**
+	 * @return plazo del hilo, para pasarlo a otro hilo con {@link #set(Long)},
+	 *         o <code>null</code> si no hay ninguno
+	 */
+	public static Long get() {
+		return limite.get();
+	}
+
+	/**
+	 * Fija el plazo del hilo, por ejemplo al ejecutar una operacion en nombre
+	 * de otro hilo
+	 *
+	 * @param plazo plazo obtenido con {@link #get()}, <code>null</code> para
+	 *              quitarlo
+	 */
+	public static void set(Long plazo) {
+		if (plazo == null) {
+			limite.remove();
+		} else {
+			limite.set(plazo);
+		}
+	}
+
+	/**
+	 * @return milisegundos que le quedan al plazo del hilo, 0 si ya ha
+	 *         vencido, o -1 si no hay plazo
+	 */
+	public static long getRestante() {
+		Long fin = limite.get();
+		if (fin == null) {
+			return -1;
+		}
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(fin - System.nanoTime()));
+	}
+
+	/**
+	 * Aplica el plazo del hilo a una sentencia antes de ejecutarla: fija como
+	 * timeout el tiempo restante y programa su cancelacion para cuando venza.
+	 * El timeout de JDBC va en segundos y sirve de respaldo en el servidor, la
+	 * cancelacion respeta los milisegundos. Tras ejecutarla se debe llamar a
+	 * {@link #finalizar(ScheduledFuture)}
+	 *
+	 * @param stmt sentencia a ejecutar
+	 * @return cancelacion programada, <code>null</code> si no hay plazo
+	 * @throws SQLTimeoutException si el plazo ya ha vencido
+	 * @throws SQLException        si no se puede fijar el timeout
+	 */
+	public static ScheduledFuture<?> aplicar(Statement stmt) throws SQLException {
+		Long fin = limite.get();
+		if (fin == null) {
+			// Las sentencias de la cache conservan el timeout de su uso anterior
+			stmt.setQueryTimeout(0);
+			return null;
+		}
+		long restante = fin - System.nanoTime();
+		if (restante <= 0) {
+			agotados.incrementAndGet();
+			throw new SQLTimeoutException("Plazo de la operacion agotado antes de ejecutar la sentencia");
+		}
+		stmt.setQueryTimeout((int) Math.max(1, Math.min(Integer.MAX_VALUE, (restante + 999999999L) / 1000000000L)));
+		try {
+			return vigilancia.schedule(() -> cancelar(stmt), restante, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			// La aplicacion se esta parando, queda el timeout de JDBC
+			return null;
+		}
+	}
+
+	/**
+	 * Anula la cancelacion programada de una sentencia que ya ha terminado
+	 *
+	 * @param cancelacion devuelta por {@link #aplicar(Statement)}, puede ser
+	 *                    <code>null</code>
+	 */
+	public static void finalizar(ScheduledFuture<?> cancelacion) {
+		if (cancelacion != null) {
+			cancelacion.cancel(false);
+		}
+	}
+
+	private static void cancelar(Statement stmt) {
+		try {
+			if (!stmt.isClosed()) {
+				cancelados.incrementAndGet();
+				log.warn("Plazo de la operacion agotado, se cancela la sentencia en ejecucion");
+				stmt.cancel();
+			}
+		} catch (Exception e) {
+			log.error("Error cancelando sentencia fuera de plazo", e);
+		}
+	}
+
+	/**
+	 * Para el hilo que cancela las sentencias al parar la aplicacion
+	 */
+	public static void detener() {
+		vigilancia.shutdownNow();
+	}
+
+	/**
+	 * @return milisegundos por defecto que puede durar una operacion de BL, 0
+	 *         si no tienen plazo
+	 */
+	public static long getPlazoDefecto() {
+		return plazoDefecto;
+	}
+
+	/**
+	 * Fija el plazo por defecto de las operaciones de BL
+	 *
+	 * @param millis milisegundos, 0 para no limitarlas
+	 */
+	public static void setPlazoDefecto(long millis) {
+		plazoDefecto = Math.max(0, millis);
+	}
+
+	/**
+	 * @return milisegundos por defecto que puede durar un recorrido de muchos
+	 *         datos, 0 si no tienen plazo
+	 */
+	public static long getPlazoRecorrido() {
+		return plazoRecorrido;
+	}
+
+	/**
+	 * Fija el plazo de los recorridos de muchos datos, que incluye el tiempo
+	 * que tarda en procesar cada tupla quien recorre los datos
+	 *
+	 * @param millis milisegundos, 0 para no limitarlos
+	 */
+	public static void setPlazoRecorrido(long millis) {
+		plazoRecorrido = Math.max(0, millis);
+	}
+
+	/**
+	 * @return numero de sentencias no ejecutadas por tener el plazo vencido
+	 */
+	public static long getAgotados() {
+		return agotados.get();
+	}
+
+	/**
+	 * @return numero de sentencias canceladas al vencer el plazo
+	 */
+	public static long getCancelados() {
+		return cancelados.get();
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de tiempos en microsegundos con cubetas logaritmicas (cuatro
+ * cubetas por cada potencia de dos, error maximo del 25%). El registro de
+ * valores no usa bloqueos, por lo que se puede usar en el camino critico de
+ * las consultas.
+ *
+ * @author javier.vaquero
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUBCUBETAS = 4;
+	private static final int NUM_CUBETAS = 62 * SUBCUBETAS;
+
+	private final AtomicLongArray cubetas = new AtomicLongArray(NUM_CUBETAS);
+	private final LongAdder total = new LongAdder();
+	private final LongAdder suma = new LongAdder();
+	private volatile long maximo = 0;
+
+	/**
+	 * Registra un tiempo
+	 *
+	 * @param nanos tiempo en nanosegundos
+	 */
+	public void registrar(long nanos) {
+		long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+		cubetas.incrementAndGet(getCubeta(micros));
+		total.increment();
+		suma.add(micros);
+		if (micros > maximo) {
+			// Carrera benigna: en el peor caso se pierde un maximo casi simultaneo
+			maximo = micros;
+		}
+	}
+
+	/**
+	 * @return numero de tiempos registrados
+	 */
+	public long getTotal() {
+		return total.sum();
+	}
+
+	/**
+	 * @return tiempo medio en microsegundos
+	 */
+	public long getMedia() {
+		long n = total.sum();
+		return n == 0 ? 0 : suma.sum() / n;
+	}
+
+	/**
+	 * @return tiempo maximo en microsegundos
+	 */
+	public long getMaximo() {
+		return maximo;
+	}
+
+	/**
+	 * Obtiene el percentil indicado
+	 *
+	 * @param percentil valor entre 0 y 100
+	 * @return limite superior en microsegundos de la cubeta que contiene el
+	 *         percentil
+	 */
+	public long getPercentil(double percentil) {
+		long[] copia = new long[NUM_CUBETAS];
+		long n = 0;
+		for (int i = 0; i < NUM_CUBETAS; i++) {
+			copia[i] = cubetas.get(i);
+			n += copia[i];
+		}
+		if (n == 0) {
+			return 0;
+		}
+		long objetivo = (long) Math.ceil(n * percentil / 100d);
+		long acumulado = 0;
+		for (int i = 0; i < NUM_CUBETAS; i++) {
+			acumulado += copia[i];
+			if (acumulado >= Math.max(1, objetivo)) {
+				return Math.min(getLimiteSuperior(i), maximo);
+			}
+		}
+		return maximo;
+	}
+
+	/**
+	 * Vacia el histograma
+	 */
+	public void reset() {
+		for (int i = 0; i < NUM_CUBETAS; i++) {
+			cubetas.set(i, 0);
+		}
+		total.reset();
+		suma.reset();
+		maximo = 0;
+	}
+
+	private static int getCubeta(long valor) {
+		if (valor < SUBCUBETAS) {
+			return (int) valor;
+		}
+		int bit = 63 - Long.numberOfLeadingZeros(valor);
+		int sub = (int) ((valor >>> (bit - 2)) & (SUBCUBETAS - 1));
+		return Math.min(NUM_CUBETAS - 1, (bit - 1) * SUBCUBETAS + sub);
+	}
+
+	private static long getLimiteSuperior(int cubeta) {
+		if (cubeta < SUBCUBETAS) {
+			return cubeta;
+		}
+		int bit = cubeta / SUBCUBETAS + 1;
+		int sub = cubeta % SUBCUBETAS;
+		return ((SUBCUBETAS + sub + 1L) << (bit - 2)) - 1;
+	}
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Detector de conexiones no devueltas. Todas las conexiones que obtienen las
+ * factorias se anotan con su BL de origen y el momento en que se obtuvieron,
+ * que cuesta muy poco; la pila de llamadas solo se captura en una de cada
+ * {@link #getMuestreo()} conexiones. Un hilo en segundo plano avisa en el log
+ * de las conexiones retenidas mas de {@link #getUmbral()}, con su origen y, si
+ * se capturo, su pila.
+ *
+ * @author javier.vaquero
+ *
+ */
+public class LeakDetector {
+
+	final static Logger log = LoggerFactory.getLogger(LeakDetector.class);
+
+	/**
+	 * Segundos por defecto a partir de los cuales una conexion retenida se
+	 * considera una posible fuga
+	 */
+	public static final long UMBRAL_DEFECTO = 60;
+
+	/**
+	 * Por defecto se captura la pila de una de cada este numero de conexiones
+	 */
+	public static final int MUESTREO_DEFECTO = 100;
+
+	private static volatile long umbralNanos = TimeUnit.SECONDS.toNanos(UMBRAL_DEFECTO);
+	private static volatile int muestreo = MUESTREO_DEFECTO;
+
+	private static final Set<Prestamo> prestamos = Collections.newSetFromMap(new ConcurrentHashMap<>());
+	private static final AtomicLong numFugas = new AtomicLong();
+
+	private static final ScheduledExecutorService revision = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread hilo = new Thread(r, "myrecipes-fugas");
+		hilo.setDaemon(true);
+		return hilo;
+	});
+
+	static {
+		revision.scheduleWithFixedDelay(LeakDetector::revisar, 10, 10, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Conexion obtenida y aun no devuelta
+	 */
+	public static class Prestamo {
+		private final long inicio = System.nanoTime();
+		private final String origen;
+		private final String hilo = Thread.currentThread().getName();
+		// Solo se rellena en las conexiones muestreadas, la pila se resuelve al avisar
+		private final Throwable traza;
+		private volatile boolean avisado = false;
+
+		private Prestamo(String origen, Throwable traza) {
+			this.origen = origen;
+			this.traza = traza;
+		}
+
+		public String getOrigen() {
+			return origen;
+		}
+
+		public String getHilo() {
+			return hilo;
+		}
+
+		/**
+		 * @return milisegundos que lleva retenida la conexion
+		 */
+		public long getTiempo() {
+			return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio);
+		}
+
+		/**
+		 * @return pila de llamadas desde la que se obtuvo la conexion, o
+		 *         <code>null</code> si no se capturo
+		 */
+		public StackTraceElement[] getPila() {
+			return traza == null ? null : traza.getStackTrace();
+		}
+	}
+
+	/**
+	 * Anota que se ha obtenido una conexion
+	 *
+	 * @param origen BL que la va a usar, puede ser <code>null</code>
+	 * @return prestamo que se debe pasar a {@link #liberar(Prestamo)} al cerrar
+	 *         la conexion
+	 */
+	public static Prestamo registrar(String origen) {
+		int cada = muestreo;
+		// El Throwable guarda la pila sin resolverla, los StackTraceElement solo se crean al avisar
+		Throwable traza = cada > 0 && ThreadLocalRandom.current().nextInt(cada) == 0 ? new Throwable("Origen de la conexion") : null;
+		Prestamo prestamo = new Prestamo(origen, traza);
+		prestamos.add(prestamo);
+		return prestamo;
+	}
+
+	/**
+	 * Anota que se ha cerrado una conexion
+	 *
+	 * @param prestamo prestamo devuelto por {@link #registrar(String)}, puede
+	 *                 ser <code>null</code>
+	 */
+	public static void liberar(Prestamo prestamo) {
+		if (prestamo != null && prestamos.remove(prestamo) && prestamo.avisado) {
+			log.info("Conexion de " + prestamo.origen + " devuelta tras " + prestamo.getTiempo() + " ms");
+		}
+	}
+
+	private static void revisar() {
+		try {
+			long umbral = umbralNanos;
+			long ahora = System.nanoTime();
+			for (Prestamo prestamo : prestamos) {
+				if (!prestamo.avisado && ahora - prestamo.inicio > umbral) {
+					prestamo.avisado = true;
+					numFugas.incrementAndGet();
+					String mensaje = "Posible fuga: conexion de " + prestamo.origen + " retenida " + prestamo.getTiempo()
+							+ " ms por el hilo " + prestamo.hilo;
+					if (prestamo.traza != null) {
+						log.warn(mensaje, prestamo.traza);
+					} else {
+						log.warn(mensaje + " (sin pila, no muestreada)");
+					}
+				}
+			}
+		} catch (Exception e) {
+			log.error("Error revisando conexiones retenidas", e);
+		}
+	}
+
+	/**
+	 * Para el hilo de revision al parar la aplicacion
+	 */
+	public static void detener() {
+		revision.shutdownNow();
+	}
+
+	/**
+	 * @return conexiones retenidas mas del umbral, de la mas antigua a la mas
+	 *         reciente
+	 */
+	public static List<Prestamo> getRetenidas() {
+		long limite = System.nanoTime() - umbralNanos;
+		List<Prestamo> retenidas = new ArrayList<>();
+		for (Prestamo prestamo : prestamos) {
+			if (prestamo.inicio - limite < 0) {
+				retenidas.add(prestamo);
+			}
+		}
+		retenidas.sort((a, b) -> Long.compare(a.inicio, b.inicio));
+		return retenidas;
+	}
+
+	/**
+	 * @return numero de conexiones obtenidas y aun no devueltas
+	 */
+	public static int getNumPrestamos() {
+		return prestamos.size();
+	}
+
+	/**
+	 * @return numero de conexiones de las que se ha avisado como posible fuga
+	 */
+	public static long getNumFugas() {
+		return numFugas.get();
+	}
+
+	/**
+	 * @return segundos a partir de los cuales una conexion retenida se
+	 *         considera una posible fuga
+	 */
+	public static long getUmbral() {
+		return TimeUnit.NANOSECONDS.toSeconds(umbralNanos);
+	}
+
+	/**
+	 * Fija el tiempo a partir del cual una conexion retenida se considera una
+	 * posible fuga
+	 *
+	 * @param segundos umbral en segundos
+	 */
+	public static void setUmbral(long segundos) {
+		umbralNanos = TimeUnit.SECONDS.toNanos(Math.max(1, segundos));
+	}
+
+	/**
+	 * @return se captura la pila de una de cada este numero de conexiones, 0
+	 *         si no se captura nunca
+	 */
+	public static int getMuestreo() {
+		return muestreo;
+	}
+
+	/**
+	 * Fija cada cuantas conexiones se captura la pila de llamadas
+	 *
+	 * @param cada 1 para capturarla siempre, 0 para no capturarla nunca
+	 */
+	public static void setMuestreo(int cada) {
+		muestreo = Math.max(0, cada);
+	}
+}
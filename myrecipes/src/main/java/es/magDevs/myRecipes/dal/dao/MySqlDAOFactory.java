@@ -15,36 +15,68 @@
  */
 package es.magDevs.myRecipes.dal.dao;
 
+import java.io.InputStream;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.util.Properties;
 
 import javax.naming.NamingException;
 
-import es.magDevs.myRecipes.dal.be.RecetaBean;
 import es.magDevs.myRecipes.dal.dao.mysql.MyRecetasDAO;
 
 public class MySqlDAOFactory extends DAOFactory {
 
 	private static String DRIVER_NAME = "com.mysql.jdbc.Driver";
 
+	// Pool de conexiones directas, solo se crea si no hay datasource en JNDI
+	private static volatile ConnectionPool pool = null;
+
 	@Override
-	public synchronized Connection getConnection() throws Exception{
+	protected Connection abrirConexion() throws Exception {
+		ConnectionPool poolActual = pool;
+		if (poolActual != null) {
+			// Ya se sabe que no hay datasource, no se vuelve a buscar
+			return poolActual.getConnection();
+		}
 		try {
-			return super.getConnection();
+			return super.abrirConexion();
 		} catch (NamingException e) {
-			logger.info("Intentado conexion directa!!");
-			
-			Properties propiedades = new Properties();
-			propiedades.load(MySqlDAOFactory.class.getClassLoader().getResourceAsStream("config.properties"));
-			
-			String user = propiedades.getProperty("user");
-			String pass = propiedades.getProperty("pass");
-			String url = propiedades.getProperty("url");
-			Class.forName(DRIVER_NAME);
-			
-			connection = DriverManager.getConnection(url, user, pass);
-			return connection;
+			return getPool().getConnection();
+		}
+	}
+
+	private static ConnectionPool getPool() throws Exception {
+		synchronized (MySqlDAOFactory.class) {
+			if (pool == null) {
+				logger.info("Intentado conexion directa!!");
+				
+				// La configuracion solo se lee una vez, al crear el pool
+				Properties propiedades = new Properties();
+				try (InputStream config = MySqlDAOFactory.class.getClassLoader().getResourceAsStream("config.properties")) {
+					propiedades.load(config);
+				}
+				Class.forName(DRIVER_NAME);
+				pool = new ConnectionPool(propiedades);
+			}
+			return pool;
+		}
+	}
+
+	/**
+	 * @return pool de conexiones directas o <code>null</code> si se usa el
+	 *         datasource de JNDI
+	 */
+	public static ConnectionPool getConnectionPool() {
+		return pool;
+	}
+
+	/**
+	 * Cierra el pool de conexiones directas, si se ha creado, al parar la
+	 * aplicacion
+	 */
+	public static void cerrarConnectionPool() {
+		ConnectionPool poolActual = pool;
+		if (poolActual != null) {
+			poolActual.cerrar();
 		}
 	}
 
@@ -54,7 +86,7 @@ public class MySqlDAOFactory extends DAOFactory {
 //	}
 	
 	@Override
-	public BasicDAO<RecetaBean> getRecetasDao() throws Exception {
+	public RecetasDAO getRecetasDao() throws Exception {
 		return new MyRecetasDAO(getConnection());
 	}
 }
@@ -0,0 +1,253 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Metricas de las conexiones a base de datos: cuanto se espera a obtener una
+ * conexion, cuanto la retiene cada BL y cuanto viven las conexiones del pool
+ * interno. Junto con las conexiones activas, libres y pendientes de
+ * {@link DAOFactory} permiten saber si la latencia viene de falta de
+ * conexiones o de MySQL. Se publican tambien por JMX mientras la aplicacion
+ * esta arrancada.
+ *
+ * @author javier.vaquero
+ *
+ */
+public class PoolMetrics implements PoolMetricsMBean {
+
+	final static Logger log = LoggerFactory.getLogger(PoolMetrics.class);
+
+	/**
+	 * Nombre con el que se publican las metricas por JMX
+	 */
+	public static final String NOMBRE_JMX = "es.magDevs.myRecipes:type=PoolMetrics";
+
+	/**
+	 * Origen de las conexiones obtenidas fuera de una BL
+	 */
+	public static final String SIN_ORIGEN = "sin BL";
+
+	private static final AtomicInteger pendientes = new AtomicInteger();
+	private static final LatencyHistogram tiemposEspera = new LatencyHistogram();
+	private static final LatencyHistogram tiemposVida = new LatencyHistogram();
+	private static final LatencyHistogram tiemposRetencion = new LatencyHistogram();
+	private static final ConcurrentHashMap<String, LatencyHistogram> retencionesOrigen = new ConcurrentHashMap<>();
+
+	private PoolMetrics() {
+	}
+
+	/**
+	 * Publica las metricas por JMX. Se llama al arrancar la aplicacion y se
+	 * deben retirar con {@link #desregistrarJmx()} al pararla, para que el
+	 * servidor no siga sirviendo las de un despliegue anterior
+	 */
+	public static void registrarJmx() {
+		try {
+			MBeanServer servidor = ManagementFactory.getPlatformMBeanServer();
+			ObjectName nombre = new ObjectName(NOMBRE_JMX);
+			if (servidor.isRegistered(nombre)) {
+				// Queda de un despliegue anterior que no se paro bien
+				servidor.unregisterMBean(nombre);
+			}
+			servidor.registerMBean(new PoolMetrics(), nombre);
+		} catch (Exception e) {
+			log.warn("No se han podido publicar las metricas de conexiones por JMX", e);
+		}
+	}
+
+	/**
+	 * Retira las metricas publicadas por JMX
+	 */
+	public static void desregistrarJmx() {
+		try {
+			MBeanServer servidor = ManagementFactory.getPlatformMBeanServer();
+			ObjectName nombre = new ObjectName(NOMBRE_JMX);
+			if (servidor.isRegistered(nombre)) {
+				servidor.unregisterMBean(nombre);
+			}
+		} catch (Exception e) {
+			log.warn("No se han podido retirar las metricas de conexiones de JMX", e);
+		}
+	}
+
+	/**
+	 * Anota que un hilo empieza a esperar una conexion
+	 *
+	 * @return momento de inicio de la espera, para
+	 *         {@link #finEspera(long)}
+	 */
+	public static long inicioEspera() {
+		pendientes.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/**
+	 * Anota que un hilo ha terminado de esperar una conexion, la obtenga o no
+	 *
+	 * @param inicio momento de inicio devuelto por {@link #inicioEspera()}
+	 */
+	public static void finEspera(long inicio) {
+		pendientes.decrementAndGet();
+		tiemposEspera.registrar(System.nanoTime() - inicio);
+	}
+
+	/**
+	 * Registra el tiempo que una factoria ha tenido una conexion
+	 *
+	 * @param origen BL que la ha usado, <code>null</code> si no se sabe
+	 * @param nanos  tiempo en nanosegundos
+	 */
+	public static void registrarRetencion(String origen, long nanos) {
+		tiemposRetencion.registrar(nanos);
+		String clave = origen != null ? origen : SIN_ORIGEN;
+		LatencyHistogram tiempos = retencionesOrigen.get(clave);
+		if (tiempos == null) {
+			tiempos = retencionesOrigen.computeIfAbsent(clave, c -> new LatencyHistogram());
+		}
+		tiempos.registrar(nanos);
+	}
+
+	/**
+	 * Registra el tiempo de vida de una conexion fisica al cerrarla
+	 *
+	 * @param nanos tiempo en nanosegundos
+	 */
+	public static void registrarVida(long nanos) {
+		tiemposVida.registrar(nanos);
+	}
+
+	/**
+	 * @return histograma del tiempo de espera para obtener una conexion, en
+	 *         microsegundos
+	 */
+	public static LatencyHistogram getTiemposEspera() {
+		return tiemposEspera;
+	}
+
+	/**
+	 * @return histograma del tiempo que se retienen las conexiones, en
+	 *         microsegundos
+	 */
+	public static LatencyHistogram getTiemposRetencion() {
+		return tiemposRetencion;
+	}
+
+	/**
+	 * @return histogramas del tiempo de retencion de cada BL, ordenados por
+	 *         nombre
+	 */
+	public static Map<String, LatencyHistogram> getRetencionesOrigen() {
+		return new TreeMap<>(retencionesOrigen);
+	}
+
+	/**
+	 * @return histograma del tiempo de vida de las conexiones del pool
+	 *         interno, en microsegundos
+	 */
+	public static LatencyHistogram getTiemposVida() {
+		return tiemposVida;
+	}
+
+	/**
+	 * @return numero de hilos esperando una conexion
+	 */
+	public static int getNumPendientes() {
+		return pendientes.get();
+	}
+
+	/**
+	 * Borra los tiempos registrados
+	 */
+	public static void limpiar() {
+		tiemposEspera.reset();
+		tiemposVida.reset();
+		tiemposRetencion.reset();
+		retencionesOrigen.clear();
+	}
+
+	@Override
+	public int getActivas() {
+		return DAOFactory.getNumConexiones();
+	}
+
+	@Override
+	public int getLibres() {
+		return DAOFactory.getConexionesLibres();
+	}
+
+	@Override
+	public int getPendientes() {
+		return getNumPendientes();
+	}
+
+	@Override
+	public int getMaximo() {
+		return DAOFactory.getMaximoConexiones();
+	}
+
+	@Override
+	public long getEsperaMedia() {
+		return tiemposEspera.getMedia();
+	}
+
+	@Override
+	public long getEsperaP99() {
+		return tiemposEspera.getPercentil(99);
+	}
+
+	@Override
+	public long getEsperaMaxima() {
+		return tiemposEspera.getMaximo();
+	}
+
+	@Override
+	public long getRetencionMedia() {
+		return tiemposRetencion.getMedia();
+	}
+
+	@Override
+	public long getRetencionP99() {
+		return tiemposRetencion.getPercentil(99);
+	}
+
+	@Override
+	public long getVidaMedia() {
+		return tiemposVida.getMedia();
+	}
+
+	@Override
+	public long getEsperasAgotadas() {
+		ConnectionPool pool = MySqlDAOFactory.getConnectionPool();
+		return pool != null ? pool.getEsperasAgotadas() : 0;
+	}
+
+	@Override
+	public void reset() {
+		limpiar();
+	}
+}
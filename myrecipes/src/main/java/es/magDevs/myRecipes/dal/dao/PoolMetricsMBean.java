@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+/**
+ * Interfaz JMX con las metricas de las conexiones, publicada como
+ * <code>es.magDevs.myRecipes:type=PoolMetrics</code>. Los tiempos estan en
+ * microsegundos
+ *
+ * @author javier.vaquero
+ *
+ */
+public interface PoolMetricsMBean {
+
+	/**
+	 * @return conexiones obtenidas por las factorias y aun no cerradas
+	 */
+	int getActivas();
+
+	/**
+	 * @return conexiones libres en el pool, -1 si no se sabe
+	 */
+	int getLibres();
+
+	/**
+	 * @return hilos esperando a obtener una conexion
+	 */
+	int getPendientes();
+
+	/**
+	 * @return numero maximo de conexiones del pool, -1 si no se sabe
+	 */
+	int getMaximo();
+
+	long getEsperaMedia();
+
+	long getEsperaP99();
+
+	long getEsperaMaxima();
+
+	long getRetencionMedia();
+
+	long getRetencionP99();
+
+	/**
+	 * @return tiempo medio de vida de las conexiones cerradas del pool
+	 *         interno
+	 */
+	long getVidaMedia();
+
+	/**
+	 * @return veces que se ha agotado la espera por una conexion del pool
+	 *         interno
+	 */
+	long getEsperasAgotadas();
+
+	/**
+	 * Borra los histogramas
+	 */
+	void reset();
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+/**
+ * Como se comporta una transaccion que se inicia cuando ya hay otra abierta
+ * en el mismo hilo
+ *
+ * @author javier.vaquero
+ *
+ */
+public enum Propagacion {
+	/**
+	 * Se une a la transaccion abierta, o abre una nueva si no hay ninguna. Los
+	 * cambios se confirman o cancelan con los de la transaccion exterior
+	 */
+	REQUIRED,
+	/**
+	 * Abre siempre una transaccion nueva con su propia conexion, dejando en
+	 * suspenso la exterior hasta que termine. Sus cambios se confirman aunque
+	 * la exterior se cancele
+	 */
+	REQUIRES_NEW,
+	/**
+	 * Dentro de una transaccion abierta crea un savepoint: si falla solo se
+	 * deshacen sus cambios y la exterior puede continuar. Sin transaccion
+	 * abierta se comporta como {@link #REQUIRED}
+	 */
+	NESTED
+}
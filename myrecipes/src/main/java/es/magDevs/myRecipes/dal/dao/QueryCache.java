@@ -0,0 +1,383 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Cache opcional de resultados de consultas, indexada por SQL y parametros.
+ * Cada resultado guarda las tablas que ha leido y la version de cada una en el
+ * momento de lanzar la consulta; cualquier INSERT, UPDATE o DELETE ejecutado
+ * desde {@link AbstractDAO} sobre una tabla incrementa su version y deja
+ * obsoletos todos los resultados que la leyeron. Los resultados caducan
+ * ademas pasado un tiempo maximo y, si se supera el tamaño maximo, se
+ * descartan los menos usados recientemente.
+ * <p>
+ * Dentro de una transaccion no se usa la cache, porque se verian datos sin
+ * confirmar. Las tablas modificadas en la transaccion se vuelven a invalidar
+ * al terminarla, para descartar lo que otros hilos hayan leido mientras tanto.
+ *
+ * @author javier.vaquero
+ *
+ */
+public class QueryCache {
+
+	/**
+	 * Numero maximo de resultados por defecto
+	 */
+	public static final int TAMANO_DEFECTO = 1000;
+
+	/**
+	 * Tiempo maximo por defecto en segundos que se guarda un resultado
+	 */
+	public static final long CADUCIDAD_DEFECTO = 60;
+
+	private static final Pattern TABLA_MODIFICADA = Pattern.compile(
+			"^\\s*(?:INSERT\\s+(?:IGNORE\\s+)?INTO|REPLACE\\s+INTO|UPDATE|DELETE\\s+FROM)\\s+`?(\\w+)",
+			Pattern.CASE_INSENSITIVE);
+
+	private static volatile boolean activa = false;
+	private static volatile int tamanoMaximo = TAMANO_DEFECTO;
+	private static volatile long caducidadNanos = TimeUnit.SECONDS.toNanos(CADUCIDAD_DEFECTO);
+
+	// Resultados en orden de uso (el primero es el menos usado recientemente)
+	private static final LinkedHashMap<List<Object>, Resultado> resultados = new LinkedHashMap<>(256, 0.75f, true);
+	// Version actual de cada tabla, se incrementa con cada modificacion
+	private static final ConcurrentHashMap<String, AtomicLong> versiones = new ConcurrentHashMap<>();
+	// Tablas modificadas en la transaccion abierta en el hilo
+	private static final ThreadLocal<Set<String>> pendientes = new ThreadLocal<>();
+
+	private static final AtomicLong aciertos = new AtomicLong();
+	private static final AtomicLong fallos = new AtomicLong();
+	private static final AtomicLong descartes = new AtomicLong();
+	private static final AtomicLong invalidados = new AtomicLong();
+
+	private static class Resultado {
+		private final Object valor;
+		private final String[] tablas;
+		private final long[] versionesTablas;
+		private final long caducidad;
+
+		private Resultado(Object valor, String[] tablas, long[] versionesTablas, long caducidad) {
+			this.valor = valor;
+			this.tablas = tablas;
+			this.versionesTablas = versionesTablas;
+			this.caducidad = caducidad;
+		}
+
+		private boolean isValido(long ahora) {
+			if (ahora - caducidad > 0) {
+				return false;
+			}
+			for (int i = 0; i < tablas.length; i++) {
+				if (getContador(tablas[i]).get() != versionesTablas[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Version de las tablas leidas por una consulta, tomada antes de lanzarla.
+	 * Si alguna tabla se modifica mientras se ejecuta la consulta, el resultado
+	 * que se guarde con esta version ya estara obsoleto
+	 */
+	public static class Version {
+		private final String[] tablas;
+		private final long[] versionesTablas;
+
+		private Version(String[] tablas, long[] versionesTablas) {
+			this.tablas = tablas;
+			this.versionesTablas = versionesTablas;
+		}
+	}
+
+	/**
+	 * Obtiene un resultado guardado
+	 *
+	 * @param clave clave de la consulta, obtenida con
+	 *              {@link #getClave(String, List)}
+	 * @return resultado o <code>null</code> si no esta guardado o esta
+	 *         obsoleto
+	 */
+	public static Object get(List<Object> clave) {
+		Resultado resultado;
+		synchronized (resultados) {
+			resultado = resultados.get(clave);
+			if (resultado != null && !resultado.isValido(System.nanoTime())) {
+				resultados.remove(clave);
+				invalidados.incrementAndGet();
+				resultado = null;
+			}
+		}
+		if (resultado == null) {
+			fallos.incrementAndGet();
+			return null;
+		}
+		aciertos.incrementAndGet();
+		return resultado.valor;
+	}
+
+	/**
+	 * Toma la version de las tablas que va a leer una consulta. Se debe llamar
+	 * antes de lanzarla
+	 *
+	 * @param tablas tablas leidas por la consulta
+	 * @return version de las tablas
+	 */
+	public static Version getVersion(Collection<String> tablas) {
+		String[] nombres = new String[tablas.size()];
+		long[] versionesTablas = new long[nombres.length];
+		int i = 0;
+		for (String tabla : tablas) {
+			nombres[i] = tabla.toLowerCase();
+			versionesTablas[i] = getContador(nombres[i]).get();
+			i++;
+		}
+		return new Version(nombres, versionesTablas);
+	}
+
+	/**
+	 * Guarda el resultado de una consulta
+	 *
+	 * @param clave   clave de la consulta, obtenida con
+	 *                {@link #getClave(String, List)}
+	 * @param version version de las tablas leidas, tomada antes de lanzar la
+	 *                consulta
+	 * @param valor   resultado de la consulta, no se debe modificar despues
+	 */
+	public static void put(List<Object> clave, Version version, Object valor) {
+		Resultado resultado = new Resultado(valor, version.tablas, version.versionesTablas,
+				System.nanoTime() + caducidadNanos);
+		synchronized (resultados) {
+			resultados.put(clave, resultado);
+			Iterator<Resultado> it = resultados.values().iterator();
+			while (resultados.size() > tamanoMaximo && it.hasNext()) {
+				it.next();
+				it.remove();
+				descartes.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Construye la clave de una consulta
+	 *
+	 * @param sql    SQL parametrizada
+	 * @param params parametros de la consulta
+	 * @return clave o <code>null</code> si la consulta no se puede guardar
+	 *         porque algun parametro no es un valor simple
+	 */
+	public static List<Object> getClave(String sql, List<Object> params) {
+		List<Object> clave = new ArrayList<>(params.size() + 1);
+		clave.add(sql);
+		for (Object param : params) {
+			if (param != null && !(param instanceof String || param instanceof Number || param instanceof Boolean)) {
+				return null;
+			}
+			clave.add(param);
+		}
+		return clave;
+	}
+
+	/**
+	 * Invalida los resultados que leen la tabla modificada por la SQL indicada.
+	 * Si se esta dentro de una transaccion, la tabla se vuelve a invalidar al
+	 * terminarla con {@link #finTransaccion()}
+	 *
+	 * @param sql          INSERT, UPDATE o DELETE ejecutado
+	 * @param enTransaccion si la SQL se ha ejecutado dentro de una transaccion
+	 */
+	public static void invalidar(String sql, boolean enTransaccion) {
+		Matcher matcher = TABLA_MODIFICADA.matcher(sql);
+		if (!matcher.find()) {
+			// No se sabe que tabla se modifica, se descarta todo
+			limpiar();
+			return;
+		}
+		String tabla = matcher.group(1).toLowerCase();
+		getContador(tabla).incrementAndGet();
+		if (enTransaccion) {
+			Set<String> tablas = pendientes.get();
+			if (tablas == null) {
+				pendientes.set(tablas = new HashSet<>());
+			}
+			tablas.add(tabla);
+		}
+	}
+
+	/**
+	 * Invalida las tablas modificadas en la transaccion del hilo actual. Debe
+	 * llamarse al confirmar o cancelar la transaccion
+	 */
+	public static void finTransaccion() {
+		Set<String> tablas = pendientes.get();
+		if (tablas != null) {
+			pendientes.remove();
+			for (String tabla : tablas) {
+				getContador(tabla).incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Aparta las tablas modificadas en la transaccion del hilo al dejarla en
+	 * suspenso, para que {@link #finTransaccion()} de la transaccion que la
+	 * sustituye no las invalide antes de que se confirme
+	 *
+	 * @return tablas modificadas, a pasar a
+	 *         {@link #reanudarTransaccion(Set)}, o <code>null</code> si no hay
+	 */
+	public static Set<String> suspenderTransaccion() {
+		Set<String> tablas = pendientes.get();
+		pendientes.remove();
+		return tablas;
+	}
+
+	/**
+	 * Vuelve a asociar al hilo las tablas modificadas en una transaccion que
+	 * estaba en suspenso
+	 *
+	 * @param tablas tablas devueltas por {@link #suspenderTransaccion()}
+	 */
+	public static void reanudarTransaccion(Set<String> tablas) {
+		if (tablas == null) {
+			pendientes.remove();
+		} else {
+			pendientes.set(tablas);
+		}
+	}
+
+	private static AtomicLong getContador(String tabla) {
+		AtomicLong version = versiones.get(tabla);
+		if (version == null) {
+			version = versiones.computeIfAbsent(tabla, t -> new AtomicLong());
+		}
+		return version;
+	}
+
+	/**
+	 * Descarta todos los resultados guardados
+	 */
+	public static void limpiar() {
+		synchronized (resultados) {
+			resultados.clear();
+		}
+		// Las consultas en curso tampoco deben guardar su resultado
+		for (AtomicLong version : versiones.values()) {
+			version.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> si la cache esta activa
+	 */
+	public static boolean isActiva() {
+		return activa;
+	}
+
+	/**
+	 * Activa o desactiva la cache. Al desactivarla se descartan todos los
+	 * resultados
+	 *
+	 * @param activar <code>true</code> para activar la cache
+	 */
+	public static void setActiva(boolean activar) {
+		activa = activar;
+		if (!activar) {
+			limpiar();
+		}
+	}
+
+	public static int getTamanoMaximo() {
+		return tamanoMaximo;
+	}
+
+	/**
+	 * Fija el numero maximo de resultados guardados
+	 *
+	 * @param tamano numero de resultados
+	 */
+	public static void setTamanoMaximo(int tamano) {
+		tamanoMaximo = Math.max(0, tamano);
+	}
+
+	/**
+	 * @return tiempo maximo en segundos que se guarda un resultado
+	 */
+	public static long getCaducidad() {
+		return TimeUnit.NANOSECONDS.toSeconds(caducidadNanos);
+	}
+
+	/**
+	 * Fija el tiempo maximo que se guarda un resultado
+	 *
+	 * @param segundos tiempo en segundos
+	 */
+	public static void setCaducidad(long segundos) {
+		caducidadNanos = TimeUnit.SECONDS.toNanos(Math.max(0, segundos));
+	}
+
+	/**
+	 * @return numero de resultados guardados
+	 */
+	public static int getTamano() {
+		synchronized (resultados) {
+			return resultados.size();
+		}
+	}
+
+	/**
+	 * @return numero de consultas resueltas desde la cache
+	 */
+	public static long getAciertos() {
+		return aciertos.get();
+	}
+
+	/**
+	 * @return numero de consultas que no estaban en la cache
+	 */
+	public static long getFallos() {
+		return fallos.get();
+	}
+
+	/**
+	 * @return numero de resultados descartados por superar el tamaño maximo
+	 */
+	public static long getDescartes() {
+		return descartes.get();
+	}
+
+	/**
+	 * @return numero de resultados descartados por caducados o por haberse
+	 *         modificado alguna de sus tablas
+	 */
+	public static long getInvalidados() {
+		return invalidados.get();
+	}
+}
@@ -0,0 +1,430 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Constructor de condiciones WHERE para las consultas de los DAOs. En lugar de
+ * concatenar la SQL en cada llamada, se va guardando la forma de la consulta
+ * (que condiciones estan activas, sobre que campos y con que operador) y los
+ * valores de los parametros por separado. La SQL se genera solo la primera vez
+ * que aparece cada forma y se reutiliza en el resto, de forma que para una
+ * misma combinacion de filtros siempre se obtiene el mismo texto SQL (y la
+ * cache de sentencias de la conexion puede reutilizar el
+ * {@link PreparedStatement}).
+ * <p>
+ * Los nombres de campo y las condiciones deben ser constantes, nunca se deben
+ * concatenar valores en ellos.
+ *
+ * @author javier.vaquero
+ *
+ */
+public class QueryConditions {
+
+	/**
+	 * Numero maximo de formas de consulta distintas que se guardan ya
+	 * generadas
+	 */
+	public static final int MAX_FORMAS = 2000;
+
+	private static final ConcurrentHashMap<List<Object>, String> sqlPorForma = new ConcurrentHashMap<>();
+
+	/**
+	 * Tipos de condicion con SQL especial. Las condiciones con un operador
+	 * simple (=, <>, >, ...) guardan el operador como texto en la forma
+	 */
+	private enum Tipo {
+		LIKE, IN, NOT_IN, IS_NULL, LIBRE, ORDEN
+	}
+
+	// Posiciones reservadas en la forma para la SQL inicial, si se incluye el orden y los limites
+	private static final int POS_PREFIJO = 0;
+	private static final int POS_CON_ORDEN = 1;
+	private static final int POS_LIMITES = 2;
+
+	// Valores de la posicion de limites: sin limites, solo LIMIT o LIMIT y OFFSET
+	private static final Integer SIN_LIMITES = 0;
+	private static final Integer LIMITE = 1;
+	private static final Integer LIMITE_DESPLAZAMIENTO = 2;
+
+	/**
+	 * Forma de la consulta: SQL inicial, si se incluye el orden y pares
+	 * operador-campo de cada condicion activa. Solo contiene constantes, nunca
+	 * valores de parametros.
+	 */
+	private final ArrayList<Object> forma = new ArrayList<>(12);
+	private final List<Object> params = new ArrayList<>();
+	private Integer limite = null;
+	private Integer desplazamiento = null;
+	private boolean ordenada = false;
+
+	public QueryConditions() {
+		forma.add(null);
+		forma.add(null);
+		forma.add(SIN_LIMITES);
+	}
+
+	/**
+	 * Añade una condicion con el operador indicado si el valor no es
+	 * <code>null</code> ni esta vacio
+	 *
+	 * @param operator
+	 *            operador de la condicion (=,>,>=,<,<=,...), debe ser constante
+	 * @param field
+	 *            campo de la tabla, debe ser constante
+	 * @param value
+	 *            valor de la condicion
+	 * @return este mismo objeto
+	 */
+	public QueryConditions add(String operator, String field, Object value) {
+		if (value != null && StringUtils.isNotBlank(value.toString())) {
+			forma.add(operator);
+			forma.add(field);
+			params.add(value instanceof String ? value.toString().trim() : value);
+		}
+		return this;
+	}
+
+	/**
+	 * Añade una condicion de igual si el valor no es <code>null</code> ni esta
+	 * vacio
+	 *
+	 * @param field
+	 *            campo de la tabla
+	 * @param value
+	 *            valor de la condicion
+	 * @return este mismo objeto
+	 */
+	public QueryConditions equal(String field, Object value) {
+		return add("=", field, value);
+	}
+
+	/**
+	 * Añade una condicion de distinto si el valor no es <code>null</code> ni
+	 * esta vacio
+	 *
+	 * @param field
+	 *            campo de la tabla
+	 * @param value
+	 *            valor de la condicion
+	 * @return este mismo objeto
+	 */
+	public QueryConditions distinct(String field, Object value) {
+		return add("<>", field, value);
+	}
+
+	/**
+	 * Añade una condicion UPPER(campo) LIKE '%{@code valor}%' si el valor no es
+	 * <code>null</code> ni esta vacio
+	 *
+	 * @param field
+	 *            campo de la tabla
+	 * @param value
+	 *            valor de la condicion
+	 * @return este mismo objeto
+	 */
+	public QueryConditions like(String field, Object value) {
+		return like(field, value, true, true);
+	}
+
+	/**
+	 * Añade una condicion UPPER(campo) LIKE '{@code valor}' si el valor no es
+	 * <code>null</code> ni esta vacio, añadiendo los comodines indicados
+	 *
+	 * @param field
+	 *            campo de la tabla
+	 * @param value
+	 *            valor de la condicion
+	 * @param iniWildCard
+	 *            si es <code>true</code>, se añadira el comodin '%' al inicio
+	 * @param endWildCard
+	 *            si es <code>true</code>, se añadira el comodin '%' al final
+	 * @return este mismo objeto
+	 */
+	public QueryConditions like(String field, Object value, boolean iniWildCard, boolean endWildCard) {
+		if (value != null) {
+			String texto = value.toString().toUpperCase().trim();
+			if (!texto.isEmpty()) {
+				forma.add(Tipo.LIKE);
+				forma.add(field);
+				params.add((iniWildCard ? "%" : "") + texto + (endWildCard ? "%" : ""));
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Añade una condicion MATCH(campo) AGAINST (valor) en lenguaje natural si el
+	 * valor no es <code>null</code> ni esta vacio. El campo debe tener indice
+	 * FULLTEXT
+	 *
+	 * @param field
+	 *            campo o campos separados por comas del indice FULLTEXT
+	 * @param value
+	 *            texto a buscar
+	 * @return este mismo objeto
+	 */
+	public QueryConditions match(String field, Object value) {
+		if (value != null && StringUtils.isNotBlank(value.toString())) {
+			condition(AbstractDAO.getMatchField(field), value);
+		}
+		return this;
+	}
+
+	/**
+	 * Añade una condicion IN con los valores indicados, si hay alguno
+	 *
+	 * @param field
+	 *            campo de la tabla
+	 * @param values
+	 *            valores de la condicion
+	 * @return este mismo objeto
+	 */
+	public QueryConditions in(String field, Collection<?> values) {
+		return in(false, field, values);
+	}
+
+	/**
+	 * Añade una condicion IN o NOT IN con los valores indicados, si hay alguno
+	 *
+	 * @param distinct
+	 *            <code>true</code> para usar NOT IN
+	 * @param field
+	 *            campo de la tabla
+	 * @param values
+	 *            valores de la condicion
+	 * @return este mismo objeto
+	 */
+	public QueryConditions in(boolean distinct, String field, Collection<?> values) {
+		if (values != null && !values.isEmpty()) {
+			forma.add(distinct ? Tipo.NOT_IN : Tipo.IN);
+			forma.add(field);
+			// El numero de valores forma parte de la forma de la consulta, se
+			// rellena para que listas de distinta longitud compartan la SQL
+			List<Object> valores = AbstractDAO.rellenarIn(values);
+			forma.add(valores.size());
+			params.addAll(valores);
+		}
+		return this;
+	}
+
+	/**
+	 * Añade una condicion IS NULL
+	 *
+	 * @param field
+	 *            campo de la tabla
+	 * @return este mismo objeto
+	 */
+	public QueryConditions isNull(String field) {
+		forma.add(Tipo.IS_NULL);
+		forma.add(field);
+		return this;
+	}
+
+	/**
+	 * Añade una condicion escrita directamente en SQL, con los valores de sus
+	 * parametros
+	 *
+	 * @param condition
+	 *            condicion SQL constante, con un '?' por cada valor
+	 * @param values
+	 *            valores de los parametros
+	 * @return este mismo objeto
+	 */
+	public QueryConditions condition(String condition, Object... values) {
+		forma.add(Tipo.LIBRE);
+		forma.add(condition);
+		for (Object value : values) {
+			params.add(value instanceof String ? value.toString().trim() : value);
+		}
+		return this;
+	}
+
+	/**
+	 * Fija la ordenacion de la consulta. Si se llama varias veces se usa la
+	 * ultima ordenacion indicada
+	 *
+	 * @param orderBy
+	 *            campos de ordenacion sin el ORDER BY, debe ser constante
+	 * @return este mismo objeto
+	 */
+	public QueryConditions orderBy(String orderBy) {
+		forma.add(Tipo.ORDEN);
+		forma.add(orderBy);
+		ordenada = true;
+		return this;
+	}
+
+	/**
+	 * @return <code>true</code> si se ha fijado alguna ordenacion
+	 */
+	public boolean isOrdenada() {
+		return ordenada;
+	}
+
+	/**
+	 * Limita el numero de tuplas devueltas con LIMIT. Los limites se añaden al
+	 * final de la SQL, tambien en {@link #getSqlSinOrden(String)}, y sus
+	 * valores al final de {@link #getParams()}, aunque se llame antes de añadir
+	 * condiciones
+	 *
+	 * @param tamano
+	 *            numero maximo de tuplas
+	 * @return este mismo objeto
+	 */
+	public QueryConditions limit(int tamano) {
+		limite = tamano;
+		desplazamiento = null;
+		forma.set(POS_LIMITES, LIMITE);
+		return this;
+	}
+
+	/**
+	 * Limita el numero de tuplas devueltas con LIMIT y OFFSET. Los limites se
+	 * añaden al final de la SQL, tambien en {@link #getSqlSinOrden(String)}, y
+	 * sus valores al final de {@link #getParams()}, aunque se llame antes de
+	 * añadir condiciones. MySQL tiene que leer y descartar todas las tuplas
+	 * anteriores al desplazamiento, para recorrer muchas paginas es mejor
+	 * filtrar por la ultima clave leida y usar {@link #limit(int)}
+	 *
+	 * @param inicio
+	 *            numero de tuplas a saltar, empezando en 0
+	 * @param tamano
+	 *            numero maximo de tuplas
+	 * @return este mismo objeto
+	 */
+	public QueryConditions limit(int inicio, int tamano) {
+		limite = tamano;
+		desplazamiento = inicio;
+		forma.set(POS_LIMITES, LIMITE_DESPLAZAMIENTO);
+		return this;
+	}
+
+	/**
+	 * @return valores de los parametros de las condiciones, en orden, seguidos
+	 *         de los limites si se han fijado
+	 */
+	public List<Object> getParams() {
+		if (limite == null) {
+			return params;
+		}
+		List<Object> retorno = new ArrayList<>(params.size() + 2);
+		retorno.addAll(params);
+		retorno.add(limite);
+		if (desplazamiento != null) {
+			retorno.add(desplazamiento);
+		}
+		return retorno;
+	}
+
+	/**
+	 * Obtiene la SQL completa: la SQL inicial indicada seguida de las
+	 * condiciones y de la ordenacion
+	 *
+	 * @param prefix
+	 *            SQL inicial (SELECT ... FROM ...), debe ser constante
+	 * @return SQL parametrizada
+	 */
+	public String getSql(String prefix) {
+		return getSql(prefix, true);
+	}
+
+	/**
+	 * Obtiene la SQL completa sin ordenacion: la SQL inicial indicada seguida
+	 * de las condiciones (y de los limites si se han fijado). Util para COUNT y
+	 * subconsultas
+	 *
+	 * @param prefix
+	 *            SQL inicial (SELECT ... FROM ...), debe ser constante
+	 * @return SQL parametrizada
+	 */
+	public String getSqlSinOrden(String prefix) {
+		return getSql(prefix, false);
+	}
+
+	private String getSql(String prefix, boolean conOrden) {
+		forma.set(POS_PREFIJO, prefix);
+		forma.set(POS_CON_ORDEN, conOrden);
+		String sql = sqlPorForma.get(forma);
+		if (sql == null) {
+			sql = render(prefix, conOrden);
+			if (sqlPorForma.size() < MAX_FORMAS) {
+				sqlPorForma.putIfAbsent(new ArrayList<>(forma), sql);
+			}
+		}
+		return sql;
+	}
+
+	/**
+	 * Genera la SQL a partir de la forma, solo se llama la primera vez que
+	 * aparece cada forma
+	 */
+	private String render(String prefix, boolean conOrden) {
+		StringBuilder where = new StringBuilder();
+		String orden = null;
+		int i = POS_LIMITES + 1;
+		while (i < forma.size()) {
+			Object operador = forma.get(i++);
+			String campo = (String) forma.get(i++);
+			if (operador == Tipo.ORDEN) {
+				orden = campo;
+				continue;
+			}
+			where.append(where.length() == 0 ? " WHERE " : " AND ");
+			if (operador == Tipo.LIBRE) {
+				where.append(campo);
+			} else if (operador == Tipo.LIKE) {
+				where.append("UPPER(").append(campo).append(") LIKE ?");
+			} else if (operador == Tipo.IS_NULL) {
+				where.append(campo).append(" IS NULL");
+			} else if (operador == Tipo.IN || operador == Tipo.NOT_IN) {
+				int numValores = (Integer) forma.get(i++);
+				where.append(campo).append(operador == Tipo.IN ? " IN (" : " NOT IN (");
+				for (int j = 0; j < numValores; j++) {
+					where.append(j == 0 ? "?" : ",?");
+				}
+				where.append(')');
+			} else {
+				where.append(campo).append(' ').append(operador).append(" ?");
+			}
+		}
+		StringBuilder sql = new StringBuilder(prefix).append(where);
+		if (conOrden && orden != null) {
+			sql.append(" ORDER BY ").append(orden);
+		}
+		Object limites = forma.get(POS_LIMITES);
+		if (LIMITE.equals(limites)) {
+			sql.append(" LIMIT ?");
+		} else if (LIMITE_DESPLAZAMIENTO.equals(limites)) {
+			sql.append(" LIMIT ? OFFSET ?");
+		}
+		return sql.toString();
+	}
+
+	/**
+	 * @return numero de formas de consulta con la SQL ya generada
+	 */
+	public static int getNumFormas() {
+		return sqlPorForma.size();
+	}
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import java.util.List;
+
+import es.magDevs.myRecipes.dal.be.RecetaBean;
+
+/**
+ * Interfaz del DAO de recetas, con las operaciones basicas y las propias de las
+ * recetas
+ * @author javier.vaquero
+ *
+ */
+public interface RecetasDAO extends BasicDAO<RecetaBean> {
+
+	/**
+	 * Obtiene una receta con sus pasos, ingredientes y tipos en una unica
+	 * consulta
+	 * 
+	 * @param id ID de la receta
+	 * @return receta con las listas de pasos, ingredientes y tipos rellenas o
+	 *         <code>null</code> si no existe
+	 */
+	RecetaBean getRecetaCompleta(Long id) throws Exception;
+
+	/**
+	 * Busca recetas por texto en su descripcion y en la de sus pasos con los
+	 * indices FULLTEXT, ordenadas de mayor a menor relevancia
+	 * 
+	 * @param texto texto a buscar, en lenguaje natural
+	 * @param max   numero maximo de recetas a devolver
+	 * @return recetas encontradas
+	 */
+	List<RecetaBean> search(String texto, int max) throws Exception;
+}
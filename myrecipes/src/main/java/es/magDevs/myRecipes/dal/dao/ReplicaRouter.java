@@ -0,0 +1,337 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reparte las conexiones de solo lectura entre las replicas configuradas en
+ * JNDI, por turnos. Si una replica falla al dar una conexion se marca como
+ * caida y no se vuelve a usar hasta pasado {@link #ESPERA_CAIDA} y comprobar
+ * que responde. Si no hay replicas configuradas o estan todas caidas, las
+ * lecturas van a la base de datos principal.
+ * <p>
+ * Para que cada usuario vea sus propios cambios aunque las replicas vayan con
+ * retraso, despues de una escritura las lecturas de la misma sesion (o del
+ * mismo hilo si no hay sesion) van a la principal durante
+ * {@link #getTiempoPrincipal()}.
+ *
+ * @author javier.vaquero
+ *
+ */
+public class ReplicaRouter {
+
+	final static Logger log = LoggerFactory.getLogger(ReplicaRouter.class);
+
+	/**
+	 * Nombres JNDI por defecto de las replicas, sin el prefijo jdbc/
+	 */
+	public static final String[] REPLICAS_DEFECTO = { "MySQLDBReplica" };
+
+	/**
+	 * Milisegundos que una replica caida no se usa antes de volver a probarla
+	 */
+	public static final long ESPERA_CAIDA = 30000;
+
+	/**
+	 * Milisegundos por defecto que las lecturas de una sesion van a la principal
+	 * despues de una escritura
+	 */
+	public static final long TIEMPO_PRINCIPAL_DEFECTO = 5000;
+
+	// Numero de sesiones a partir del cual se limpian las escrituras antiguas
+	private static final int MAX_SESIONES = 1000;
+
+	private static volatile String[] nombres = REPLICAS_DEFECTO;
+	private static volatile List<Replica> replicas = null;
+	private static volatile long tiempoPrincipalNanos = TimeUnit.MILLISECONDS.toNanos(TIEMPO_PRINCIPAL_DEFECTO);
+
+	private static final AtomicInteger turno = new AtomicInteger();
+	// Momento de la ultima escritura de cada sesion o hilo
+	private static final Map<String, Long> escrituras = new ConcurrentHashMap<>();
+	// Sesion HTTP de la peticion que se esta atendiendo en el hilo
+	private static final ThreadLocal<String> sesion = new ThreadLocal<>();
+	// Conexiones de replica entregadas y aun no devueltas
+	private static final Set<Connection> conexionesReplica = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+	private static final AtomicLong lecturasReplica = new AtomicLong();
+	private static final AtomicLong lecturasPrincipal = new AtomicLong();
+	private static final AtomicLong fallosReplica = new AtomicLong();
+
+	/**
+	 * Replica configurada
+	 */
+	public static class Replica {
+		private final String nombre;
+		private final DataSource ds;
+		private volatile long caidaHasta = 0;
+
+		private Replica(String nombre, DataSource ds) {
+			this.nombre = nombre;
+			this.ds = ds;
+		}
+
+		public String getNombre() {
+			return nombre;
+		}
+
+		/**
+		 * @return <code>true</code> si la replica se puede usar
+		 */
+		public boolean isDisponible() {
+			return System.currentTimeMillis() >= caidaHasta;
+		}
+	}
+
+	/**
+	 * Obtiene una conexion de solo lectura de una replica
+	 *
+	 * @return conexion o <code>null</code> si la lectura debe ir a la
+	 *         principal: no hay replicas disponibles o la sesion ha escrito
+	 *         recientemente
+	 */
+	public static Connection getConnection() {
+		List<Replica> disponibles = getReplicas();
+		if (disponibles.isEmpty() || isEscrituraReciente()) {
+			lecturasPrincipal.incrementAndGet();
+			return null;
+		}
+		int inicio = Math.floorMod(turno.getAndIncrement(), disponibles.size());
+		for (int i = 0; i < disponibles.size(); i++) {
+			Replica replica = disponibles.get((inicio + i) % disponibles.size());
+			if (!replica.isDisponible()) {
+				continue;
+			}
+			boolean probar = replica.caidaHasta != 0;
+			Connection con = null;
+			try {
+				con = replica.ds.getConnection();
+				// Si estaba caida, se comprueba que ya responde antes de usarla
+				if (probar && !con.isValid(2)) {
+					throw new SQLException("La replica no responde");
+				}
+				con.setReadOnly(true);
+				replica.caidaHasta = 0;
+				lecturasReplica.incrementAndGet();
+				conexionesReplica.add(con);
+				return con;
+			} catch (SQLException e) {
+				fallosReplica.incrementAndGet();
+				replica.caidaHasta = System.currentTimeMillis() + ESPERA_CAIDA;
+				log.warn("Replica " + replica.nombre + " caida, se usara la principal durante " + ESPERA_CAIDA + " ms", e);
+				cerrar(con);
+			}
+		}
+		lecturasPrincipal.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Indica si la conexion es de una replica, en cuyo caso lo que se lea
+	 * puede no incluir las ultimas escrituras
+	 *
+	 * @param con conexion a comprobar
+	 * @return <code>true</code> si la ha entregado {@link #getConnection()} y
+	 *         aun no se ha liberado
+	 */
+	public static boolean isReplica(Connection con) {
+		return con != null && conexionesReplica.contains(con);
+	}
+
+	/**
+	 * Anota que se ha cerrado una conexion, sea o no de una replica
+	 *
+	 * @param con conexion cerrada, puede ser <code>null</code>
+	 */
+	public static void liberar(Connection con) {
+		if (con != null) {
+			conexionesReplica.remove(con);
+		}
+	}
+
+	private static void cerrar(Connection con) {
+		if (con != null) {
+			try {
+				con.close();
+			} catch (SQLException e) {
+				log.error("Error cerrando conexion de replica", e);
+			}
+		}
+	}
+
+	/**
+	 * Anota que la sesion actual ha escrito, para que sus lecturas vayan a la
+	 * principal durante un tiempo
+	 */
+	public static void registrarEscritura() {
+		if (escrituras.size() > MAX_SESIONES) {
+			long limite = System.nanoTime() - tiempoPrincipalNanos;
+			Iterator<Long> it = escrituras.values().iterator();
+			while (it.hasNext()) {
+				if (it.next() - limite < 0) {
+					it.remove();
+				}
+			}
+		}
+		escrituras.put(getClaveSesion(), System.nanoTime());
+	}
+
+	private static boolean isEscrituraReciente() {
+		Long escritura = escrituras.get(getClaveSesion());
+		return escritura != null && System.nanoTime() - escritura < tiempoPrincipalNanos;
+	}
+
+	private static String getClaveSesion() {
+		String id = sesion.get();
+		return id != null ? id : "hilo-" + Thread.currentThread().getId();
+	}
+
+	/**
+	 * @return sesion asociada al hilo actual, puede ser <code>null</code>
+	 */
+	public static String getSesion() {
+		return sesion.get();
+	}
+
+	/**
+	 * Asocia una sesion al hilo actual, normalmente el ID de la sesion HTTP de
+	 * la peticion que se esta atendiendo
+	 *
+	 * @param id ID de la sesion, <code>null</code> para quitarla
+	 */
+	public static void setSesion(String id) {
+		if (id == null) {
+			sesion.remove();
+		} else {
+			sesion.set(id);
+		}
+	}
+
+	/**
+	 * @return replicas configuradas en JNDI
+	 */
+	public static List<Replica> getReplicas() {
+		List<Replica> lista = replicas;
+		if (lista == null) {
+			synchronized (ReplicaRouter.class) {
+				if (replicas == null) {
+					replicas = buscarReplicas(nombres);
+				}
+				lista = replicas;
+			}
+		}
+		return lista;
+	}
+
+	private static List<Replica> buscarReplicas(String[] nombresJndi) {
+		List<Replica> lista = new ArrayList<>();
+		Context envContext = null;
+		try {
+			envContext = new InitialContext();
+			Context dsContext = (Context) envContext.lookup("java:comp/env");
+			for (String nombre : nombresJndi) {
+				try {
+					lista.add(new Replica(nombre, (DataSource) dsContext.lookup("jdbc/" + nombre)));
+					log.info("Replica de lectura configurada: " + nombre);
+				} catch (NamingException e) {
+					log.debug("No existe la replica " + nombre);
+				}
+			}
+		} catch (NamingException e) {
+			log.debug("Sin contexto JNDI, no se usan replicas");
+		} finally {
+			try {
+				if (envContext != null) {
+					envContext.close();
+				}
+			} catch (NamingException e) {
+				log.error("Error liberando contexto al buscar replicas", e);
+			}
+		}
+		return lista;
+	}
+
+	/**
+	 * Fija los nombres JNDI de las replicas. Se buscaran de nuevo la proxima vez
+	 * que se necesiten
+	 *
+	 * @param nombresJndi nombres sin el prefijo jdbc/
+	 */
+	public static void setReplicas(String... nombresJndi) {
+		synchronized (ReplicaRouter.class) {
+			nombres = nombresJndi.clone();
+			replicas = null;
+		}
+	}
+
+	/**
+	 * @return milisegundos que las lecturas de una sesion van a la principal
+	 *         despues de una escritura
+	 */
+	public static long getTiempoPrincipal() {
+		return TimeUnit.NANOSECONDS.toMillis(tiempoPrincipalNanos);
+	}
+
+	/**
+	 * Fija el tiempo que las lecturas de una sesion van a la principal despues
+	 * de una escritura. Debe ser mayor que el retraso habitual de las replicas
+	 *
+	 * @param milisegundos tiempo en milisegundos
+	 */
+	public static void setTiempoPrincipal(long milisegundos) {
+		tiempoPrincipalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, milisegundos));
+	}
+
+	/**
+	 * @return numero de lecturas enviadas a una replica
+	 */
+	public static long getLecturasReplica() {
+		return lecturasReplica.get();
+	}
+
+	/**
+	 * @return numero de lecturas enviadas a la principal
+	 */
+	public static long getLecturasPrincipal() {
+		return lecturasPrincipal.get();
+	}
+
+	/**
+	 * @return numero de veces que una replica ha fallado al dar una conexion
+	 */
+	public static long getFallosReplica() {
+		return fallosReplica.get();
+	}
+}
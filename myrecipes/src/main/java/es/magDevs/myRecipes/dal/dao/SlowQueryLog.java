@@ -0,0 +1,283 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registro de consultas lentas. Las SELECT que tardan mas del umbral
+ * configurado se guardan en memoria (solo las ultimas
+ * {@link #TAMANO_REGISTRO}) y en un fichero propio, junto con su plan de
+ * ejecucion. El EXPLAIN se lanza en segundo plano sobre una conexion aparte
+ * con los mismos parametros, para no retrasar a quien lanzo la consulta ni
+ * interferir con su transaccion. Para las consultas rapidas solo se hace una
+ * comparacion.
+ *
+ * @author javier.vaquero
+ *
+ */
+public class SlowQueryLog {
+
+	// Logger propio, configurado en log4j.properties con su fichero
+	final static Logger log = LoggerFactory.getLogger("es.magDevs.myRecipes.slowQueries");
+
+	/**
+	 * Umbral por defecto en milisegundos a partir del cual una consulta se
+	 * considera lenta
+	 */
+	public static final long UMBRAL_DEFECTO = 500;
+
+	/**
+	 * Numero de consultas lentas que se guardan en memoria
+	 */
+	public static final int TAMANO_REGISTRO = 100;
+
+	/**
+	 * Numero maximo de EXPLAIN pendientes, si hay mas las consultas se escriben
+	 * sin plan
+	 */
+	public static final int MAX_PENDIENTES = 20;
+
+	private static volatile long umbralNanos = TimeUnit.MILLISECONDS.toNanos(UMBRAL_DEFECTO);
+
+	private static final ArrayDeque<ConsultaLenta> registro = new ArrayDeque<>(TAMANO_REGISTRO);
+	private static final AtomicLong numConsultasLentas = new AtomicLong();
+	private static final AtomicLong explainDescartados = new AtomicLong();
+
+	// Un unico hilo para los EXPLAIN, con cola acotada para no acumular trabajo
+	private static final ThreadPoolExecutor explainExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<>(MAX_PENDIENTES), r -> {
+				Thread hilo = new Thread(r, "myrecipes-explain");
+				hilo.setDaemon(true);
+				return hilo;
+			});
+
+	/**
+	 * Datos de una consulta lenta
+	 */
+	public static class ConsultaLenta {
+		private final Date fecha = new Date();
+		private final String sql;
+		private final String parametros;
+		private final long tiempo;
+		private volatile String plan;
+
+		private ConsultaLenta(String sql, String parametros, long tiempo) {
+			this.sql = sql;
+			this.parametros = parametros;
+			this.tiempo = tiempo;
+		}
+
+		public Date getFecha() {
+			return fecha;
+		}
+
+		public String getSql() {
+			return sql;
+		}
+
+		public String getParametros() {
+			return parametros;
+		}
+
+		/**
+		 * @return tiempo de la consulta en milisegundos
+		 */
+		public long getTiempo() {
+			return tiempo;
+		}
+
+		/**
+		 * @return plan de ejecucion o <code>null</code> si aun no se ha
+		 *         obtenido o no se ha podido obtener
+		 */
+		public String getPlan() {
+			return plan;
+		}
+	}
+
+	/**
+	 * Comprueba el tiempo de una consulta y, si supera el umbral, la registra y
+	 * solicita su plan de ejecucion
+	 *
+	 * @param sql    SQL parametrizada ejecutada
+	 * @param params parametros de la consulta
+	 * @param nanos  tiempo de ejecucion en nanosegundos
+	 */
+	public static void registrar(String sql, List<Object> params, long nanos) {
+		long umbral = umbralNanos;
+		if (umbral <= 0 || nanos < umbral) {
+			return;
+		}
+		ConsultaLenta consulta = new ConsultaLenta(sql, StringUtils.join(params, ", "),
+				TimeUnit.NANOSECONDS.toMillis(nanos));
+		numConsultasLentas.incrementAndGet();
+		synchronized (registro) {
+			if (registro.size() >= TAMANO_REGISTRO) {
+				registro.removeFirst();
+			}
+			registro.addLast(consulta);
+		}
+		if (isExplicable(sql, params)) {
+			// Copia de los parametros, quien llamo puede reutilizar la lista
+			List<Object> copia = params == null ? new ArrayList<>() : new ArrayList<>(params);
+			try {
+				explainExecutor.execute(() -> explain(consulta, copia));
+			} catch (RejectedExecutionException e) {
+				// Con la cola llena se pierde el plan, pero la consulta debe quedar en el log
+				explainDescartados.incrementAndGet();
+				escribir(consulta);
+			}
+		} else {
+			escribir(consulta);
+		}
+	}
+
+	/**
+	 * Solo se puede hacer EXPLAIN de las SELECT sin parametros de tipo stream,
+	 * que ya han sido consumidos por la consulta original
+	 */
+	private static boolean isExplicable(String sql, List<Object> params) {
+		if (!StringUtils.startsWithIgnoreCase(sql.trim(), "SELECT")) {
+			return false;
+		}
+		if (params != null) {
+			for (Object param : params) {
+				if (param instanceof Reader || param instanceof InputStream) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static void explain(ConsultaLenta consulta, List<Object> params) {
+		DAOFactory factory = DAOFactory.getDAOFactory(DAOFactory.MYSQL);
+		try {
+			Connection con = factory.getConnection();
+			try (PreparedStatement stmt = con.prepareStatement("EXPLAIN " + consulta.sql)) {
+				for (int i = 0; i < params.size(); i++) {
+					AbstractDAO.setStmtValue(stmt, i + 1, params.get(i));
+				}
+				try (ResultSet rs = stmt.executeQuery()) {
+					consulta.plan = formatPlan(rs);
+				}
+			}
+		} catch (Exception e) {
+			log.warn("No se ha podido obtener el plan de la consulta lenta", e);
+		} finally {
+			factory.closeConnection();
+		}
+		escribir(consulta);
+	}
+
+	private static String formatPlan(ResultSet rs) throws Exception {
+		ResultSetMetaData metaData = rs.getMetaData();
+		StringBuilder plan = new StringBuilder();
+		for (int i = 1; i <= metaData.getColumnCount(); i++) {
+			plan.append(i == 1 ? "" : "\t").append(metaData.getColumnLabel(i));
+		}
+		while (rs.next()) {
+			plan.append('\n');
+			for (int i = 1; i <= metaData.getColumnCount(); i++) {
+				plan.append(i == 1 ? "" : "\t").append(rs.getString(i));
+			}
+		}
+		return plan.toString();
+	}
+
+	private static void escribir(ConsultaLenta consulta) {
+		log.warn("Consulta lenta (" + consulta.tiempo + " ms):\n" + consulta.sql + "\nParametros: " + consulta.parametros
+				+ (consulta.plan == null ? "" : "\nPlan:\n" + consulta.plan));
+	}
+
+	/**
+	 * Obtiene las ultimas consultas lentas registradas
+	 *
+	 * @return consultas lentas, de la mas antigua a la mas reciente
+	 */
+	public static List<ConsultaLenta> getConsultasLentas() {
+		synchronized (registro) {
+			return new ArrayList<>(registro);
+		}
+	}
+
+	/**
+	 * @return numero total de consultas lentas detectadas
+	 */
+	public static long getNumConsultasLentas() {
+		return numConsultasLentas.get();
+	}
+
+	/**
+	 * Para el hilo de los EXPLAIN al parar la aplicacion, las consultas lentas
+	 * que lleguen despues se escriben sin plan
+	 */
+	public static void detener() {
+		explainExecutor.shutdownNow();
+	}
+
+	/**
+	 * @return numero de EXPLAIN descartados por haber demasiados pendientes
+	 */
+	public static long getExplainDescartados() {
+		return explainDescartados.get();
+	}
+
+	/**
+	 * Borra las consultas lentas guardadas en memoria
+	 */
+	public static void reset() {
+		synchronized (registro) {
+			registro.clear();
+		}
+	}
+
+	/**
+	 * @return umbral en milisegundos a partir del cual una consulta se
+	 *         considera lenta
+	 */
+	public static long getUmbral() {
+		return TimeUnit.NANOSECONDS.toMillis(umbralNanos);
+	}
+
+	/**
+	 * Fija el umbral a partir del cual una consulta se considera lenta
+	 *
+	 * @param milisegundos umbral en milisegundos, 0 para desactivar el registro
+	 */
+	public static void setUmbral(long milisegundos) {
+		umbralNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, milisegundos));
+	}
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Estadisticas de ejecucion de las SQL lanzadas por los DAOs, agrupadas por
+ * SQL normalizada (las listas IN de cualquier tamaño cuentan como la misma
+ * SQL). Para cada SQL se guardan el numero de llamadas, errores, tuplas
+ * devueltas o modificadas y un histograma de tiempos. El registro no usa
+ * bloqueos y solo normaliza la SQL la primera vez que se ve cada texto.
+ *
+ * @author javier.vaquero
+ *
+ */
+public class SqlStatistics {
+
+	/**
+	 * Numero maximo de textos SQL distintos de los que se recuerda su SQL
+	 * normalizada
+	 */
+	public static final int MAX_SQL = 5000;
+
+	// Sin grupos repetidos, que con listas IN de cientos de parametros desbordan la pila
+	private static final Pattern LISTA_PARAMETROS = Pattern.compile("\\(\\s*\\?\\s*,[\\s,?]*\\)");
+	private static final Pattern ESPACIOS = Pattern.compile("\\s+");
+
+	// Estadisticas por texto SQL tal cual se ejecuta y por SQL normalizada
+	private static final ConcurrentHashMap<String, Estadistica> porSql = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, Estadistica> porSqlNormalizada = new ConcurrentHashMap<>();
+
+	private static volatile boolean activo = true;
+
+	/**
+	 * Datos de ejecucion de una SQL normalizada
+	 */
+	public static class Estadistica {
+		private final String sql;
+		private final LongAdder llamadas = new LongAdder();
+		private final LongAdder errores = new LongAdder();
+		private final LongAdder tuplas = new LongAdder();
+		private final LongAdder tiempoTotal = new LongAdder();
+		private final LatencyHistogram tiempos = new LatencyHistogram();
+
+		private Estadistica(String sql) {
+			this.sql = sql;
+		}
+
+		private void registrar(long nanos, long numTuplas, boolean error) {
+			llamadas.increment();
+			tiempoTotal.add(nanos);
+			tiempos.registrar(nanos);
+			if (error) {
+				errores.increment();
+			} else if (numTuplas > 0) {
+				tuplas.add(numTuplas);
+			}
+		}
+
+		public String getSql() {
+			return sql;
+		}
+
+		public long getLlamadas() {
+			return llamadas.sum();
+		}
+
+		public long getErrores() {
+			return errores.sum();
+		}
+
+		public long getTuplas() {
+			return tuplas.sum();
+		}
+
+		/**
+		 * @return tiempo total de todas las llamadas en milisegundos
+		 */
+		public long getTiempoTotal() {
+			return tiempoTotal.sum() / 1000000;
+		}
+
+		/**
+		 * @return histograma de tiempos en microsegundos
+		 */
+		public LatencyHistogram getTiempos() {
+			return tiempos;
+		}
+	}
+
+	/**
+	 * Registra una ejecucion de una SQL
+	 *
+	 * @param sql       SQL parametrizada ejecutada
+	 * @param nanos     tiempo de ejecucion en nanosegundos
+	 * @param numTuplas tuplas devueltas o modificadas
+	 * @param error     si la ejecucion ha terminado con error
+	 */
+	public static void registrar(String sql, long nanos, long numTuplas, boolean error) {
+		if (!activo) {
+			return;
+		}
+		Estadistica estadistica = porSql.get(sql);
+		if (estadistica == null) {
+			estadistica = porSqlNormalizada.computeIfAbsent(normalizar(sql), Estadistica::new);
+			if (porSql.size() < MAX_SQL) {
+				porSql.putIfAbsent(sql, estadistica);
+			}
+		}
+		estadistica.registrar(nanos, numTuplas, error);
+	}
+
+	/**
+	 * Normaliza una SQL para agrupar las que solo se diferencian en el numero
+	 * de parametros de una lista o en los espacios
+	 *
+	 * @param sql SQL parametrizada
+	 * @return SQL normalizada
+	 */
+	public static String normalizar(String sql) {
+		String normalizada = LISTA_PARAMETROS.matcher(sql).replaceAll("(?...)");
+		return ESPACIOS.matcher(normalizada).replaceAll(" ").trim();
+	}
+
+	/**
+	 * Obtiene las estadisticas de todas las SQL, ordenadas de mayor a menor
+	 * tiempo total
+	 *
+	 * @return lista de estadisticas
+	 */
+	public static List<Estadistica> getEstadisticas() {
+		List<Estadistica> estadisticas = new ArrayList<>(porSqlNormalizada.values());
+		estadisticas.sort(Comparator.comparingLong(Estadistica::getTiempoTotal).reversed());
+		return estadisticas;
+	}
+
+	/**
+	 * Borra todas las estadisticas recogidas
+	 */
+	public static void reset() {
+		porSql.clear();
+		porSqlNormalizada.clear();
+	}
+
+	public static boolean isActivo() {
+		return activo;
+	}
+
+	/**
+	 * Activa o desactiva el registro de estadisticas
+	 *
+	 * @param activar <code>true</code> para registrar estadisticas
+	 */
+	public static void setActivo(boolean activar) {
+		activo = activar;
+	}
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache LRU de {@link PreparedStatement} asociada a una conexion. Las
+ * sentencias se indexan por el texto SQL y por si devuelven o no las claves
+ * generadas, de forma que las SQL que se repiten no se vuelven a preparar en
+ * cada peticion.
+ * <p>
+ * El {@link DAOFactory} registra la cache al obtener una conexion y la libera
+ * (cerrando todas las sentencias) al cerrarla. Un {@link PreparedStatement}
+ * prestado no se comparte: si se pide la misma SQL mientras esta en uso se
+ * prepara una sentencia nueva que se cerrara al devolverla.
+ *
+ * @author javier.vaquero
+ *
+ */
+public class StatementCache {
+
+	final static Logger log = LoggerFactory.getLogger(StatementCache.class);
+
+	/**
+	 * Numero maximo de sentencias por defecto que se guardan para cada conexion
+	 */
+	public static final int TAMANO_DEFECTO = 50;
+
+	private static volatile int tamanoMaximo = TAMANO_DEFECTO;
+
+	// Caches de las conexiones entregadas por el DAOFactory
+	private static final Map<Connection, StatementCache> caches = new ConcurrentHashMap<>();
+
+	// Contadores globales de todas las conexiones
+	private static final AtomicLong aciertos = new AtomicLong();
+	private static final AtomicLong fallos = new AtomicLong();
+	private static final AtomicLong descartes = new AtomicLong();
+
+	private final Connection con;
+	// Sentencias libres, en orden de uso (la primera es la menos usada recientemente)
+	private final LinkedHashMap<String, PreparedStatement> libres = new LinkedHashMap<>(16, 0.75f, true);
+	// Sentencias prestadas y la clave con la que se devolveran
+	private final IdentityHashMap<PreparedStatement, String> prestadas = new IdentityHashMap<>();
+	private boolean cerrada = false;
+
+	private StatementCache(Connection con) {
+		this.con = con;
+	}
+
+	/**
+	 * Registra una cache para la conexion indicada, si no existia ya
+	 *
+	 * @param con
+	 *            conexion entregada por el {@link DAOFactory}
+	 */
+	public static void registrar(Connection con) {
+		if (con != null) {
+			caches.computeIfAbsent(con, StatementCache::new);
+		}
+	}
+
+	/**
+	 * Libera la cache de la conexion indicada, cerrando todas sus sentencias.
+	 * Debe llamarse antes de cerrar la conexion.
+	 *
+	 * @param con
+	 *            conexion que se va a cerrar
+	 */
+	public static void liberar(Connection con) {
+		if (con != null) {
+			StatementCache cache = caches.remove(con);
+			if (cache != null) {
+				cache.cerrar();
+			}
+		}
+	}
+
+	/**
+	 * Obtiene la cache de la conexion indicada
+	 *
+	 * @param con
+	 *            conexion
+	 * @return cache de la conexion o <code>null</code> si la conexion no tiene
+	 *         ninguna registrada
+	 */
+	public static StatementCache get(Connection con) {
+		return con == null ? null : caches.get(con);
+	}
+
+	/**
+	 * Obtiene un {@link PreparedStatement} para la SQL indicada, reutilizando
+	 * uno ya preparado si esta libre. Se debe devolver con
+	 * {@link #devolver(PreparedStatement)} en lugar de cerrarlo.
+	 *
+	 * @param sql
+	 *            SQL parametrizada
+	 * @param clavesGeneradas
+	 *            si se deben poder recuperar las claves generadas
+	 * @return sentencia preparada
+	 * @throws SQLException
+	 */
+	public synchronized PreparedStatement preparar(String sql, boolean clavesGeneradas) throws SQLException {
+		String clave = (clavesGeneradas ? "K:" : "N:") + sql;
+		PreparedStatement stmt = cerrada ? null : libres.remove(clave);
+		if (stmt != null && !stmt.isClosed()) {
+			aciertos.incrementAndGet();
+		} else {
+			fallos.incrementAndGet();
+			stmt = clavesGeneradas ? con.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) : con.prepareStatement(sql);
+		}
+		prestadas.put(stmt, clave);
+		return stmt;
+	}
+
+	/**
+	 * Devuelve a la cache una sentencia obtenida con
+	 * {@link #preparar(String, boolean)}. Si ya existe otra sentencia libre
+	 * para la misma SQL o la cache esta cerrada, la sentencia se cierra. Si se
+	 * supera el tamaño maximo se cierra la menos usada recientemente.
+	 *
+	 * @param stmt
+	 *            sentencia a devolver
+	 */
+	public synchronized void devolver(PreparedStatement stmt) {
+		String clave = prestadas.remove(stmt);
+		if (clave == null || cerrada || libres.containsKey(clave)) {
+			cerrar(stmt);
+			return;
+		}
+		try {
+			stmt.clearParameters();
+			stmt.clearBatch();
+		} catch (SQLException e) {
+			cerrar(stmt);
+			return;
+		}
+		libres.put(clave, stmt);
+		while (libres.size() > tamanoMaximo) {
+			Iterator<PreparedStatement> it = libres.values().iterator();
+			PreparedStatement antigua = it.next();
+			it.remove();
+			descartes.incrementAndGet();
+			cerrar(antigua);
+		}
+	}
+
+	/**
+	 * Indica si la sentencia ha sido entregada por esta cache y aun no se ha
+	 * devuelto
+	 *
+	 * @param stmt
+	 *            sentencia
+	 * @return <code>true</code> si la sentencia pertenece a la cache
+	 */
+	public synchronized boolean isPrestada(Statement stmt) {
+		return prestadas.containsKey(stmt);
+	}
+
+	private synchronized void cerrar() {
+		cerrada = true;
+		for (PreparedStatement stmt : libres.values()) {
+			cerrar(stmt);
+		}
+		libres.clear();
+	}
+
+	private static void cerrar(Statement stmt) {
+		try {
+			stmt.close();
+		} catch (Exception e) {
+			log.error("Error cerrando sentencia de la cache", e);
+		}
+	}
+
+	/**
+	 * @return numero de veces que se ha reutilizado una sentencia ya preparada
+	 */
+	public static long getAciertos() {
+		return aciertos.get();
+	}
+
+	/**
+	 * @return numero de veces que se ha tenido que preparar una sentencia nueva
+	 */
+	public static long getFallos() {
+		return fallos.get();
+	}
+
+	/**
+	 * @return numero de sentencias cerradas por superar el tamaño maximo
+	 */
+	public static long getDescartes() {
+		return descartes.get();
+	}
+
+	/**
+	 * @return numero de conexiones con cache registrada
+	 */
+	public static int getNumCaches() {
+		return caches.size();
+	}
+
+	public static int getTamanoMaximo() {
+		return tamanoMaximo;
+	}
+
+	/**
+	 * Fija el numero maximo de sentencias libres que se guardan por conexion
+	 *
+	 * @param tamano
+	 *            numero de sentencias, 0 para desactivar la cache
+	 */
+	public static void setTamanoMaximo(int tamano) {
+		tamanoMaximo = Math.max(0, tamano);
+	}
+}
@@ -19,13 +19,18 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.lang3.StringUtils;
 
 import es.magDevs.myRecipes.dal.be.BasicBean;
 import es.magDevs.myRecipes.dal.dao.AbstractDAO;
 import es.magDevs.myRecipes.dal.dao.BasicDAO;
+import es.magDevs.myRecipes.dal.dao.BeanMapper;
+import es.magDevs.myRecipes.dal.dao.QueryConditions;
 
 /**
  * DAO que implementa operaciones basicas: crear, modificar, listar, borrar
@@ -35,16 +40,78 @@ import es.magDevs.myRecipes.dal.dao.BasicDAO;
  */
 public abstract class MyBasicDAO<BEAN extends BasicBean> extends AbstractDAO implements BasicDAO<BEAN> {
 
+	// SELECT sin condiciones de cada clase de DAO
+	private static final ConcurrentHashMap<Class<?>, String> selects = new ConcurrentHashMap<>();
+	
+	private BeanMapper<BEAN> mapper = null;
+
 	public MyBasicDAO(Connection connection) {
 		super(connection);
 	}
 
 	@Override
 	public List<BEAN> getList(BEAN filtro) throws Exception {
-		List<Object> params = new ArrayList<Object>();
-		String sql = "SELECT " + getColumnasSelect() + " FROM " + getTabla() + " ";
-		
-		return runSelect(sql + getConditions(filtro, params), params, this::getBeanFromRs);
+		QueryConditions condiciones = buildConditions(filtro);
+		return runCachedSelect(condiciones.getSql(getSelect()), condiciones.getParams(),
+				Collections.singletonList(getTabla()), this::getBeanFromRs, this::copiarBean);
+	}
+	
+	@Override
+	public void forEach(BEAN filtro, RowConsumer<BEAN> consumer) throws Exception {
+		QueryConditions condiciones = buildConditions(filtro);
+		runSelect(condiciones.getSql(getSelect()), condiciones.getParams(), this::getBeanFromRs, consumer);
+	}
+	
+	@Override
+	public List<BEAN> getPage(BEAN filtro, Long afterId, int size) throws Exception {
+		QueryConditions condiciones = buildConditions(filtro);
+		// La busqueda por clave sustituye a la ordenacion del DAO
+		condiciones.add(">", "id", afterId).orderBy("id").limit(size);
+		return runSelect(condiciones.getSql(getSelect()), condiciones.getParams(), this::getBeanFromRs);
+	}
+	
+	@Override
+	public List<BEAN> getRange(BEAN filtro, int offset, int size) throws Exception {
+		QueryConditions condiciones = buildConditions(filtro);
+		if (!condiciones.isOrdenada()) {
+			// Sin orden fijo las paginas podrian repetir o saltarse tuplas
+			condiciones.orderBy("id");
+		}
+		condiciones.limit(offset, size);
+		return runSelect(condiciones.getSql(getSelect()), condiciones.getParams(), this::getBeanFromRs);
+	}
+	
+	@Override
+	public int count(BEAN filtro) throws Exception {
+		QueryConditions condiciones = buildConditions(filtro);
+		return runCountSelect(condiciones.getSqlSinOrden("SELECT COUNT(*) FROM " + getTabla()), condiciones.getParams());
+	}
+	
+	/**
+	 * Construye las condiciones de este DAO para el filtro indicado
+	 * 
+	 * @param filtro Bean con los datos que se tienen utilzar para filtrar
+	 * @return condiciones con los valores del filtro
+	 */
+	protected QueryConditions buildConditions(BEAN filtro) throws Exception {
+		QueryConditions condiciones = new QueryConditions();
+		getConditions(filtro, condiciones);
+		return condiciones;
+	}
+	
+	/**
+	 * Obtiene la select de este DAO sin condiciones. Solo se construye una vez
+	 * por clase de DAO, para que las consultas siempre usen el mismo texto SQL
+	 * 
+	 * @return SELECT con las columnas y la tabla del DAO
+	 */
+	protected String getSelect() {
+		String select = selects.get(getClass());
+		if (select == null) {
+			select = "SELECT " + getColumnasSelect() + " FROM " + getTabla();
+			selects.putIfAbsent(getClass(), select);
+		}
+		return select;
 	}
 	
 	@Override
@@ -59,6 +126,24 @@ public abstract class MyBasicDAO<BEAN extends BasicBean> extends AbstractDAO imp
 		List<BEAN> beans = getList(filtro);
 		return beans.isEmpty() ? null : beans.get(0);
 	}
+	
+	@Override
+	public List<BEAN> getByIds(Collection<Long> ids) throws Exception {
+		return getListIn("id", ids);
+	}
+	
+	/**
+	 * Obtiene los beans cuyo campo tiene alguno de los valores indicados, por
+	 * ejemplo todos los de una pagina de recetas por su clave ajena, en pocas
+	 * consultas aunque haya muchos valores
+	 * 
+	 * @param campo   campo de la tabla del DAO
+	 * @param valores valores del campo
+	 * @return beans encontrados, sin un orden determinado
+	 */
+	protected List<BEAN> getListIn(String campo, Collection<Long> valores) throws Exception {
+		return runSelectIn(getSelect(), campo, valores, this::getBeanFromRs);
+	}
 
 	/**
 	 * Metodo para devolve las columnas a obtener con la select de este DAO, por
@@ -88,6 +173,47 @@ public abstract class MyBasicDAO<BEAN extends BasicBean> extends AbstractDAO imp
 		update(getTabla(), getColumnas(), valores);
 	}
 
+	@Override
+	public List<Long> insertAll(List<BEAN> beans) throws Exception {
+		List<List<Object>> valores = new ArrayList<>(beans.size());
+		for (BEAN bean : beans) {
+			valores.add(getValoresFromBean(bean));
+		}
+		return insertAll(getTabla(), getColumnas(), valores);
+	}
+
+	@Override
+	public void updateAll(List<BEAN> beans) throws Exception {
+		List<List<Object>> valores = new ArrayList<>(beans.size());
+		for (BEAN bean : beans) {
+			List<Object> valoresBean = new ArrayList<>(getValoresFromBean(bean));
+			valoresBean.add(bean.getId());
+			valores.add(valoresBean);
+		}
+		updateAll(getTabla(), getColumnas(), valores);
+	}
+
+	@Override
+	public Long upsert(BEAN bean) throws Exception {
+		List<Object> valores = new ArrayList<>(getValoresFromBean(bean));
+		valores.add(bean.getId());
+		return upsert(getTabla(), getColumnas(), valores);
+	}
+
+	@Override
+	public void upsertAll(List<BEAN> beans) throws Exception {
+		List<List<Object>> valores = new ArrayList<>(beans.size());
+		for (BEAN bean : beans) {
+			if (bean.getId() == null) {
+				throw new IllegalArgumentException("upsertAll requiere beans con ID, para los nuevos se debe usar insertAll");
+			}
+			List<Object> valoresBean = new ArrayList<>(getValoresFromBean(bean));
+			valoresBean.add(bean.getId());
+			valores.add(valoresBean);
+		}
+		upsertAll(getTabla(), getColumnas(), valores);
+	}
+
 	/**
 	 * Metodo abstracto que devuelve el nombre de la tabla a la que afecta el DAO
 	 * 
@@ -103,36 +229,68 @@ public abstract class MyBasicDAO<BEAN extends BasicBean> extends AbstractDAO imp
 	protected abstract List<String> getColumnas();
 
 	/**
-	 * Metodo que debe rellenar un bean con los valores del {@link ResultSet}
+	 * Metodo que rellena un bean con los valores del {@link ResultSet}
 	 * suministrado incluido el ID que ira en primer lugar. El orden de los valores
 	 * del resultset sera el mismo que el de las columnas recibidas en el metodo
-	 * {@link MyBasicDAO#getColumnas()}
+	 * {@link MyBasicDAO#getColumnas()}. Por defecto usa el {@link BeanMapper} de
+	 * la clase del bean, se puede sobreescribir si alguna columna no se
+	 * corresponde con una propiedad del bean
 	 * 
 	 * @param rs resultset con los datos de una tupla
 	 * @return instancia del bean con los datos rellenados
 	 */
-	protected abstract BEAN getBeanFromRs(ResultSet rs) throws SQLException;
+	protected BEAN getBeanFromRs(ResultSet rs) throws SQLException {
+		return getMapper().read(rs);
+	}
 
 	/**
-	 * Metodo para obtener las condiciones a aplicar al obtener los datos. Tambien puede contener una sentencia ORDER BY
+	 * Metodo para añadir las condiciones a aplicar al obtener los datos. Tambien puede fijar una ordenacion
 	 * 
 	 * @param filtro Bean con los datos que se tienen utilzar para filtrar
-	 * @param params lista de datos donde se deben añadir los valores del filtro
-	 * @return sentencia WHERE o una cadena vacia
+	 * @param condiciones donde se deben añadir las condiciones con los valores del filtro
 	 */
-	protected abstract String getConditions(BEAN filtro, List<Object> params) throws Exception;
+	protected abstract void getConditions(BEAN filtro, QueryConditions condiciones) throws Exception;
 
 	/**
 	 * Metodo para devolver los valores de un Bean excepto el ID, el orden de los valores debe ser
 	 * el mismo que el de las columnas recibidas en el metodo
-	 * {@link MyBasicDAO#getColumnas()}
+	 * {@link MyBasicDAO#getColumnas()}. Por defecto usa el {@link BeanMapper} de
+	 * la clase del bean
 	 * 
 	 * @param bean con datos
 	 * @return lista con los datos
 	 */
-	protected abstract List<Object> getValoresFromBean(BEAN bean);
+	protected List<Object> getValoresFromBean(BEAN bean) {
+		return getMapper().getValores(bean);
+	}
 	
 
 	protected abstract BEAN getNewBean();
 
+	/**
+	 * Crea una copia del bean para entregar los datos guardados en la cache de
+	 * consultas. Por defecto usa el {@link BeanMapper}, se debe sobreescribir si
+	 * se sobreescribe {@link #getBeanFromRs(ResultSet)}
+	 * 
+	 * @param bean bean a copiar
+	 * @return copia del bean
+	 */
+	protected BEAN copiarBean(BEAN bean) {
+		return getMapper().copiar(bean);
+	}
+
+	/**
+	 * Obtiene el {@link BeanMapper} para la clase del bean y las columnas de
+	 * este DAO, que solo se construye la primera vez que se usa
+	 * 
+	 * @return mapper del DAO
+	 */
+	@SuppressWarnings("unchecked")
+	protected BeanMapper<BEAN> getMapper() {
+		if (mapper == null) {
+			mapper = BeanMapper.get((Class<BEAN>) getNewBean().getClass(), getColumnas());
+		}
+		return mapper;
+	}
+
 }
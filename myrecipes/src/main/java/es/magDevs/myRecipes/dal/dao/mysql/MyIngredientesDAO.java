@@ -16,13 +16,12 @@
 package es.magDevs.myRecipes.dal.dao.mysql;
 
 import java.sql.Connection;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.List;
 
 import es.magDevs.myRecipes.dal.be.IngredienteBean;
 import es.magDevs.myRecipes.dal.dao.BasicDAO;
+import es.magDevs.myRecipes.dal.dao.QueryConditions;
 
 public class MyIngredientesDAO extends MyBasicDAO<IngredienteBean> implements BasicDAO<IngredienteBean> {
 	private static final String TABLA = "ingredientes";
@@ -43,25 +42,10 @@ public class MyIngredientesDAO extends MyBasicDAO<IngredienteBean> implements Ba
 	}
 
 	@Override
-	protected IngredienteBean getBeanFromRs(ResultSet rs) throws SQLException {
-		IngredienteBean bean = new IngredienteBean();
-		int i = 1;
-		bean.setId(rs.getLong(i++));
-		bean.setDescripcion(rs.getString(i++));
-		bean.setFoto(rs.getString(i++));
-		return bean;
-	}
-
-	@Override
-	protected String getConditions(IngredienteBean filtro, List<Object> params) throws Exception {
-		String where = addEqualCondition("", params, "id", filtro.getId());
-		where = addLikeCondition(where, params, "descripcion", filtro.getDescripcion());
-		return where;
-	}
-
-	@Override
-	protected List<Object> getValoresFromBean(IngredienteBean bean) {
-		return Arrays.asList(bean.getDescripcion(), bean.getFoto());
+	protected void getConditions(IngredienteBean filtro, QueryConditions condiciones) throws Exception {
+		condiciones
+				.equal("id", filtro.getId())
+				.like("descripcion", filtro.getDescripcion());
 	}
 
 	@Override
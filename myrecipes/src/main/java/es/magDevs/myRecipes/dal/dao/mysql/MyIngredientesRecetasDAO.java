@@ -16,13 +16,12 @@
 package es.magDevs.myRecipes.dal.dao.mysql;
 
 import java.sql.Connection;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.List;
 
 import es.magDevs.myRecipes.dal.be.IngredienteRecetaBean;
 import es.magDevs.myRecipes.dal.dao.BasicDAO;
+import es.magDevs.myRecipes.dal.dao.QueryConditions;
 
 public class MyIngredientesRecetasDAO extends MyBasicDAO<IngredienteRecetaBean> implements BasicDAO<IngredienteRecetaBean> {
 	private static final String TABLA = "ingredientes_recetas";
@@ -43,27 +42,11 @@ public class MyIngredientesRecetasDAO extends MyBasicDAO<IngredienteRecetaBean>
 	}
 
 	@Override
-	protected IngredienteRecetaBean getBeanFromRs(ResultSet rs) throws SQLException {
-		IngredienteRecetaBean bean = new IngredienteRecetaBean();
-		int i = 1;
-		bean.setId(rs.getLong(i++));
-		bean.setIngrediente(rs.getLong(i++));
-		bean.setReceta(rs.getLong(i++));
-		bean.setCantidad(rs.getString(i++));
-		return bean;
-	}
-
-	@Override
-	protected String getConditions(IngredienteRecetaBean filtro, List<Object> params) throws Exception {
-		String where = addEqualCondition("", params, "id", filtro.getId());
-		where = addEqualCondition(where, params, "ingrediente", filtro.getIngrediente());
-		where = addEqualCondition(where, params, "receta", filtro.getReceta());
-		return where;
-	}
-
-	@Override
-	protected List<Object> getValoresFromBean(IngredienteRecetaBean bean) {
-		return Arrays.asList(bean.getIngrediente(), bean.getReceta(), bean.getCantidad());
+	protected void getConditions(IngredienteRecetaBean filtro, QueryConditions condiciones) throws Exception {
+		condiciones
+				.equal("id", filtro.getId())
+				.equal("ingrediente", filtro.getIngrediente())
+				.equal("receta", filtro.getReceta());
 	}
 
 	@Override
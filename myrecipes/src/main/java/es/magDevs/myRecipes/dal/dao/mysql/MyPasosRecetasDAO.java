@@ -16,13 +16,12 @@
 package es.magDevs.myRecipes.dal.dao.mysql;
 
 import java.sql.Connection;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.List;
 
 import es.magDevs.myRecipes.dal.be.PasoRecetaBean;
 import es.magDevs.myRecipes.dal.dao.BasicDAO;
+import es.magDevs.myRecipes.dal.dao.QueryConditions;
 
 public class MyPasosRecetasDAO extends MyBasicDAO<PasoRecetaBean> implements BasicDAO<PasoRecetaBean> {
 	private static final String TABLA = "pasos_recetas";
@@ -43,26 +42,11 @@ public class MyPasosRecetasDAO extends MyBasicDAO<PasoRecetaBean> implements Bas
 	}
 
 	@Override
-	protected PasoRecetaBean getBeanFromRs(ResultSet rs) throws SQLException {
-		PasoRecetaBean bean = new PasoRecetaBean();
-		int i = 1;
-		bean.setId(rs.getLong(i++));
-		bean.setDescripcion(rs.getString(i++));
-		bean.setReceta(rs.getLong(i++));
-		return bean;
-	}
-
-	@Override
-	protected String getConditions(PasoRecetaBean filtro, List<Object> params) throws Exception {
-		String where = addEqualCondition("", params, "id", filtro.getId());
-		where = addLikeCondition(where, params, "descripcion", filtro.getDescripcion());
-		where = addEqualCondition(where, params, "receta", filtro.getReceta());
-		return where;
-	}
-
-	@Override
-	protected List<Object> getValoresFromBean(PasoRecetaBean bean) {
-		return Arrays.asList(bean.getDescripcion(), bean.getReceta());
+	protected void getConditions(PasoRecetaBean filtro, QueryConditions condiciones) throws Exception {
+		condiciones
+				.equal("id", filtro.getId())
+				.like("descripcion", filtro.getDescripcion())
+				.equal("receta", filtro.getReceta());
 	}
 
 	@Override
@@ -18,16 +18,49 @@ package es.magDevs.myRecipes.dal.dao.mysql;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import es.magDevs.myRecipes.dal.be.IngredienteRecetaBean;
+import es.magDevs.myRecipes.dal.be.PasoRecetaBean;
 import es.magDevs.myRecipes.dal.be.RecetaBean;
-import es.magDevs.myRecipes.dal.dao.BasicDAO;
+import es.magDevs.myRecipes.dal.be.TipoRecetaBean;
+import es.magDevs.myRecipes.dal.dao.QueryConditions;
+import es.magDevs.myRecipes.dal.dao.RecetasDAO;
 
-public class MyRecetasDAO extends MyBasicDAO<RecetaBean> implements BasicDAO<RecetaBean> {
+public class MyRecetasDAO extends MyBasicDAO<RecetaBean> implements RecetasDAO {
 	private static final String TABLA = "recetas";
 	private static final List<String> COLUMNAS = Arrays.asList("descripcion");
 	
+	/*
+	 * Receta con sus hijos concatenados por subconsultas correlacionadas, para
+	 * no multiplicar las tuplas de pasos, ingredientes y tipos entre si. El hint
+	 * amplia group_concat_max_len solo para esta sentencia en MySQL 8; las
+	 * versiones anteriores lo ignoran, y si se corta algun valor se amplia en la
+	 * sesion y se repite la consulta.
+	 */
+	private static final String SQL_RECETA_COMPLETA = "SELECT /*+ SET_VAR(group_concat_max_len=1048576) */ r.id,r.descripcion,"
+			+ "(SELECT " + getConcatFields(Arrays.asList("p.id", "p.descripcion"), "ORDER BY p.id")
+			+ " FROM pasos_recetas p WHERE p.receta=r.id),"
+			+ "(SELECT " + getConcatFields(Arrays.asList("i.id", "i.ingrediente", "i.cantidad"), "ORDER BY i.id")
+			+ " FROM ingredientes_recetas i WHERE i.receta=r.id),"
+			+ "(SELECT " + getConcatFields(Arrays.asList("t.id", "t.tipo"), "ORDER BY t.id")
+			+ " FROM tipos_recetas t WHERE t.receta=r.id)"
+			+ " FROM " + TABLA + " r WHERE r.id=?";
+	
+	/*
+	 * Busqueda en las descripciones de recetas y pasos sumando la relevancia de
+	 * cada receta en ambas tablas. Las coincidencias en la descripcion de la
+	 * receta cuentan el doble que las de los pasos.
+	 */
+	private static final String SQL_BUSQUEDA = "SELECT r.id,r.descripcion FROM " + TABLA + " r JOIN ("
+			+ "SELECT id receta," + getMatchField("descripcion") + "*2 relevancia FROM " + TABLA
+			+ " WHERE " + getMatchField("descripcion")
+			+ " UNION ALL SELECT receta," + getMatchField("descripcion") + " FROM pasos_recetas"
+			+ " WHERE " + getMatchField("descripcion")
+			+ ") m ON m.receta=r.id GROUP BY r.id,r.descripcion ORDER BY SUM(m.relevancia) DESC,r.id LIMIT ?";
+	
 	public MyRecetasDAO(Connection connection) {
 		super(connection);
 	}
@@ -43,24 +76,66 @@ public class MyRecetasDAO extends MyBasicDAO<RecetaBean> implements BasicDAO<Rec
 	}
 
 	@Override
-	protected RecetaBean getBeanFromRs(ResultSet rs) throws SQLException {
-		RecetaBean bean = new RecetaBean();
-		int i = 1;
-		bean.setId(rs.getLong(i++));
-		bean.setDescripcion(rs.getString(i++));
-		return bean;
+	protected void getConditions(RecetaBean filtro, QueryConditions condiciones) throws Exception {
+		condiciones
+				.equal("id", filtro.getId())
+				.like("descripcion", filtro.getDescripcion());
 	}
 
 	@Override
-	protected String getConditions(RecetaBean filtro, List<Object> params) throws Exception {
-		String where = addEqualCondition("", params, "id", filtro.getId());
-		where = addLikeCondition(where, params, "descripcion", filtro.getDescripcion());
-		return where;
+	public RecetaBean getRecetaCompleta(Long id) throws Exception {
+		try {
+			return runSelectOrNull(SQL_RECETA_COMPLETA, Arrays.asList(id), this::getRecetaCompletaFromRs);
+		} catch (SQLException e) {
+			if (!isConcatenacionCortada(e)) {
+				throw e;
+			}
+			ampliarConcatenacion();
+			return runSelectOrNull(SQL_RECETA_COMPLETA, Arrays.asList(id), this::getRecetaCompletaFromRs);
+		}
 	}
 
 	@Override
-	protected List<Object> getValoresFromBean(RecetaBean bean) {
-		return Arrays.asList(bean.getDescripcion());
+	public List<RecetaBean> search(String texto, int max) throws Exception {
+		String busqueda = texto.trim();
+		return runSelect(SQL_BUSQUEDA, Arrays.asList(busqueda, busqueda, busqueda, busqueda, max), this::getBeanFromRs);
+	}
+
+	private RecetaBean getRecetaCompletaFromRs(ResultSet rs) throws SQLException {
+		RecetaBean receta = getBeanFromRs(rs);
+		int pos = COLUMNAS.size() + 2;
+
+		List<PasoRecetaBean> pasos = new ArrayList<>();
+		for (String[] campos : splitConcatFields(rs.getString(pos++), 2)) {
+			PasoRecetaBean paso = new PasoRecetaBean();
+			paso.setId(Long.valueOf(campos[0]));
+			paso.setDescripcion(campos[1]);
+			paso.setReceta(receta.getId());
+			pasos.add(paso);
+		}
+		receta.setPasos(pasos);
+
+		List<IngredienteRecetaBean> ingredientes = new ArrayList<>();
+		for (String[] campos : splitConcatFields(rs.getString(pos++), 3)) {
+			IngredienteRecetaBean ingrediente = new IngredienteRecetaBean();
+			ingrediente.setId(Long.valueOf(campos[0]));
+			ingrediente.setIngrediente(Long.valueOf(campos[1]));
+			ingrediente.setCantidad(campos[2]);
+			ingrediente.setReceta(receta.getId());
+			ingredientes.add(ingrediente);
+		}
+		receta.setIngredientes(ingredientes);
+
+		List<TipoRecetaBean> tipos = new ArrayList<>();
+		for (String[] campos : splitConcatFields(rs.getString(pos++), 2)) {
+			TipoRecetaBean tipo = new TipoRecetaBean();
+			tipo.setId(Long.valueOf(campos[0]));
+			tipo.setTipo(Long.valueOf(campos[1]));
+			tipo.setReceta(receta.getId());
+			tipos.add(tipo);
+		}
+		receta.setTipos(tipos);
+		return receta;
 	}
 
 	@Override
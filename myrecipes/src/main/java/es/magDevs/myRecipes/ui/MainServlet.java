@@ -15,13 +15,19 @@
  */
 package es.magDevs.myRecipes.ui;
 
+import java.io.IOException;
+
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebInitParam;
 import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 
 import com.vaadin.flow.server.InitParameters;
 import com.vaadin.flow.server.VaadinServlet;
 
+import es.magDevs.myRecipes.dal.dao.ReplicaRouter;
 import es.magDevs.myRecipes.ui.error.MainErrorHandler;
 
 @WebServlet(urlPatterns = "/*", name = "mainServlet", asyncSupported = true, initParams = {
@@ -33,4 +39,16 @@ public class MainServlet extends VaadinServlet {
         super.servletInitialized();
         getService().addSessionInitListener(e->e.getSession().setErrorHandler(new MainErrorHandler()));
     }
+
+	@Override
+	protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		// Para que cada sesion lea sus propias escrituras aunque las replicas vayan con retraso
+		HttpSession session = request.getSession(false);
+		ReplicaRouter.setSesion(session == null ? null : session.getId());
+		try {
+			super.service(request, response);
+		} finally {
+			ReplicaRouter.setSesion(null);
+		}
+	}
 }
@@ -0,0 +1,242 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.ui.admin;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.commons.lang3.StringUtils;
+
+import es.magDevs.myRecipes.dal.bl.BLExecutor;
+import es.magDevs.myRecipes.dal.bl.RetryPolicy;
+import es.magDevs.myRecipes.dal.dao.DAOFactory;
+import es.magDevs.myRecipes.dal.dao.Deadline;
+import es.magDevs.myRecipes.dal.dao.LatencyHistogram;
+import es.magDevs.myRecipes.dal.dao.LeakDetector;
+import es.magDevs.myRecipes.dal.dao.PoolMetrics;
+import es.magDevs.myRecipes.dal.dao.QueryCache;
+import es.magDevs.myRecipes.dal.dao.ReplicaRouter;
+import es.magDevs.myRecipes.dal.dao.SlowQueryLog;
+import es.magDevs.myRecipes.dal.dao.SqlStatistics;
+import es.magDevs.myRecipes.dal.dao.StatementCache;
+import es.magDevs.myRecipes.ui.auth.AccessControl;
+
+/**
+ * Pagina de administracion en texto plano con las estadisticas de la capa de
+ * acceso a datos. Incluye los parametros de las consultas lentas y las pilas
+ * de quien retiene conexiones, por lo que solo la pueden consultar los
+ * usuarios con sesion iniciada que esten en el parametro de contexto
+ * {@link #PARAM_ADMINISTRADORES}. Un POST con el parametro <code>reset</code>
+ * borra las estadisticas y vacia la cache de consultas.
+ *
+ * @author javier.vaquero
+ *
+ */
+@WebServlet(urlPatterns = "/admin/dal", name = "adminServlet")
+public class AdminServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Parametro de contexto con los usuarios, separados por comas, que pueden
+	 * consultar la pagina. Si no se configura ninguno nadie puede consultarla
+	 */
+	public static final String PARAM_ADMINISTRADORES = "myRecipes.administradores";
+
+	private Set<String> administradores;
+
+	@Override
+	public void init() throws ServletException {
+		String valor = getServletContext().getInitParameter(PARAM_ADMINISTRADORES);
+		administradores = new HashSet<>(Arrays.asList(StringUtils.split(StringUtils.defaultString(valor), ", ")));
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		// Un formulario de otra web tambien puede enviar el POST con la sesion del usuario
+		if (!isAdministrador(req) || !isMismoOrigen(req)) {
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+		if (req.getParameter("reset") != null) {
+			SqlStatistics.reset();
+			SlowQueryLog.reset();
+			QueryCache.limpiar();
+			PoolMetrics.limpiar();
+		}
+		resp.setStatus(HttpServletResponse.SC_SEE_OTHER);
+		resp.setHeader("Location", req.getRequestURI());
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		if (!isAdministrador(req)) {
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+		resp.setContentType("text/plain");
+		resp.setCharacterEncoding("UTF-8");
+		resp.setHeader("Cache-Control", "no-store");
+		PrintWriter out = resp.getWriter();
+		printConexiones(out);
+		printFugas(out);
+		printStatementCache(out);
+		printQueryCache(out);
+		printExecutor(out);
+		printReintentos(out);
+		printReplicas(out);
+		printSqlStatistics(out);
+		printSlowQueries(out);
+		out.flush();
+	}
+
+	private boolean isAdministrador(HttpServletRequest req) {
+		HttpSession session = req.getSession(false);
+		Object usuario = session != null ? session.getAttribute(AccessControl.CURRENT_USER_SESSION_ATTRIBUTE_KEY) : null;
+		return usuario != null && administradores.contains(usuario);
+	}
+
+	private static boolean isMismoOrigen(HttpServletRequest req) {
+		String origen = req.getHeader("Origin");
+		if (origen == null) {
+			// Clientes que no son navegadores, como curl
+			return true;
+		}
+		String host = req.getHeader("Host");
+		return host != null && host.equalsIgnoreCase(StringUtils.substringAfter(origen, "://"));
+	}
+
+	private void printConexiones(PrintWriter out) {
+		out.println("== Conexiones (tiempos en microsegundos) ==");
+		out.printf("activas=%d libres=%d pendientes=%d maximo=%d%n", DAOFactory.getNumConexiones(),
+				DAOFactory.getConexionesLibres(), DAOFactory.getConexionesPendientes(), DAOFactory.getMaximoConexiones());
+		printHistograma(out, "espera", PoolMetrics.getTiemposEspera());
+		printHistograma(out, "retencion", PoolMetrics.getTiemposRetencion());
+		printHistograma(out, "vida", PoolMetrics.getTiemposVida());
+		for (Map.Entry<String, LatencyHistogram> retencion : PoolMetrics.getRetencionesOrigen().entrySet()) {
+			printHistograma(out, "retencion " + retencion.getKey(), retencion.getValue());
+		}
+		out.println();
+	}
+
+	private void printFugas(PrintWriter out) {
+		out.printf("== Conexiones retenidas mas de %d s (muestreo 1/%d, prestadas %d, avisos %d) ==%n",
+				LeakDetector.getUmbral(), LeakDetector.getMuestreo(), LeakDetector.getNumPrestamos(),
+				LeakDetector.getNumFugas());
+		for (LeakDetector.Prestamo prestamo : LeakDetector.getRetenidas()) {
+			out.printf("%d ms	%s	%s%n", prestamo.getTiempo(), prestamo.getOrigen(), prestamo.getHilo());
+			StackTraceElement[] pila = prestamo.getPila();
+			if (pila != null) {
+				for (StackTraceElement elemento : pila) {
+					out.println("	at " + elemento);
+				}
+			}
+		}
+		out.println();
+	}
+
+	private void printStatementCache(PrintWriter out) {
+		out.println("== Cache de sentencias ==");
+		out.printf("conexiones=%d aciertos=%d fallos=%d descartes=%d tamanoMaximo=%d%n", StatementCache.getNumCaches(),
+				StatementCache.getAciertos(), StatementCache.getFallos(), StatementCache.getDescartes(),
+				StatementCache.getTamanoMaximo());
+		out.println();
+	}
+
+	private void printQueryCache(PrintWriter out) {
+		out.println("== Cache de consultas ==");
+		out.printf("activa=%s resultados=%d aciertos=%d fallos=%d descartes=%d invalidados=%d tamanoMaximo=%d caducidad=%ds%n",
+				QueryCache.isActiva(), QueryCache.getTamano(), QueryCache.getAciertos(), QueryCache.getFallos(),
+				QueryCache.getDescartes(), QueryCache.getInvalidados(), QueryCache.getTamanoMaximo(),
+				QueryCache.getCaducidad());
+		out.println();
+	}
+
+	private void printExecutor(PrintWriter out) {
+		out.println("== Ejecutor asincrono (tiempos en microsegundos) ==");
+		out.printf("enCola=%d activas=%d completadas=%d rechazadas=%d%n", BLExecutor.getEnCola(),
+				BLExecutor.getActivas(), BLExecutor.getCompletadas(), BLExecutor.getRechazadas());
+		printHistograma(out, "espera", BLExecutor.getTiemposEspera());
+		printHistograma(out, "ejecucion", BLExecutor.getTiemposEjecucion());
+		out.println();
+	}
+
+	private void printReintentos(PrintWriter out) {
+		out.println("== Reintentos por errores transitorios y plazos ==");
+		out.printf("reintentos=%d recuperadas=%d agotadas=%d sinPresupuesto=%d presupuesto=%d maxIntentos=%d%n",
+				RetryPolicy.getReintentos(), RetryPolicy.getRecuperadas(), RetryPolicy.getAgotadas(),
+				RetryPolicy.getSinPresupuesto(), RetryPolicy.getPresupuesto(), RetryPolicy.getMaxIntentos());
+		out.printf("plazo=%dms plazoRecorrido=%dms agotados=%d cancelados=%d%n", Deadline.getPlazoDefecto(),
+				Deadline.getPlazoRecorrido(), Deadline.getAgotados(), Deadline.getCancelados());
+		out.println();
+	}
+
+	private void printReplicas(PrintWriter out) {
+		out.println("== Replicas de lectura ==");
+		out.printf("lecturasReplica=%d lecturasPrincipal=%d fallos=%d tiempoPrincipal=%dms%n",
+				ReplicaRouter.getLecturasReplica(), ReplicaRouter.getLecturasPrincipal(),
+				ReplicaRouter.getFallosReplica(), ReplicaRouter.getTiempoPrincipal());
+		for (ReplicaRouter.Replica replica : ReplicaRouter.getReplicas()) {
+			out.printf("%s\t%s%n", replica.getNombre(), replica.isDisponible() ? "disponible" : "caida");
+		}
+		out.println();
+	}
+
+	private void printHistograma(PrintWriter out, String nombre, LatencyHistogram tiempos) {
+		out.printf("%s: total=%d media=%d p50=%d p95=%d p99=%d max=%d%n", nombre, tiempos.getTotal(), tiempos.getMedia(),
+				tiempos.getPercentil(50), tiempos.getPercentil(95), tiempos.getPercentil(99), tiempos.getMaximo());
+	}
+
+	private void printSqlStatistics(PrintWriter out) {
+		out.println("== Estadisticas SQL (tiempos en microsegundos) ==");
+		out.println("llamadas\terrores\ttuplas\ttotal(ms)\tmedia\tp50\tp95\tp99\tmax\tsql");
+		for (SqlStatistics.Estadistica estadistica : SqlStatistics.getEstadisticas()) {
+			LatencyHistogram tiempos = estadistica.getTiempos();
+			out.printf("%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%s%n", estadistica.getLlamadas(), estadistica.getErrores(),
+					estadistica.getTuplas(), estadistica.getTiempoTotal(), tiempos.getMedia(), tiempos.getPercentil(50),
+					tiempos.getPercentil(95), tiempos.getPercentil(99), tiempos.getMaximo(), estadistica.getSql());
+		}
+		out.println();
+	}
+
+	private void printSlowQueries(PrintWriter out) {
+		out.printf("== Consultas lentas (umbral %d ms, total %d, explain descartados %d) ==%n", SlowQueryLog.getUmbral(),
+				SlowQueryLog.getNumConsultasLentas(), SlowQueryLog.getExplainDescartados());
+		List<SlowQueryLog.ConsultaLenta> consultas = SlowQueryLog.getConsultasLentas();
+		// Primero las mas recientes
+		for (int i = consultas.size() - 1; i >= 0; i--) {
+			SlowQueryLog.ConsultaLenta consulta = consultas.get(i);
+			out.printf("%tF %<tT\t%d ms\t%s%n", consulta.getFecha(), consulta.getTiempo(), consulta.getSql());
+			out.println("\tParametros: " + consulta.getParametros());
+			if (consulta.getPlan() != null) {
+				out.println("\t" + consulta.getPlan().replace("\n", "\n\t"));
+			}
+		}
+		out.println();
+	}
+}
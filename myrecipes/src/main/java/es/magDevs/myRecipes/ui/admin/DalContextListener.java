@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.ui.admin;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.magDevs.myRecipes.dal.bl.BLExecutor;
+import es.magDevs.myRecipes.dal.dao.Deadline;
+import es.magDevs.myRecipes.dal.dao.LeakDetector;
+import es.magDevs.myRecipes.dal.dao.MySqlDAOFactory;
+import es.magDevs.myRecipes.dal.dao.PoolMetrics;
+import es.magDevs.myRecipes.dal.dao.SlowQueryLog;
+
+/**
+ * Ciclo de vida de la capa de acceso a datos en la aplicacion web: publica
+ * las metricas por JMX al arrancar y, al parar o redesplegar, las retira y
+ * para los hilos en segundo plano y el pool de conexiones directas. Sin esto
+ * el servidor mantendria el cargador de clases del despliegue anterior.
+ *
+ * @author javier.vaquero
+ *
+ */
+@WebListener
+public class DalContextListener implements ServletContextListener {
+
+	final static Logger log = LoggerFactory.getLogger(DalContextListener.class);
+
+	@Override
+	public void contextInitialized(ServletContextEvent sce) {
+		PoolMetrics.registrarJmx();
+	}
+
+	@Override
+	public void contextDestroyed(ServletContextEvent sce) {
+		log.info("Parando la capa de acceso a datos");
+		PoolMetrics.desregistrarJmx();
+		// Primero las operaciones en curso, que todavia pueden usar conexiones
+		BLExecutor.detener();
+		SlowQueryLog.detener();
+		Deadline.detener();
+		LeakDetector.detener();
+		MySqlDAOFactory.cerrarConnectionPool();
+	}
+}
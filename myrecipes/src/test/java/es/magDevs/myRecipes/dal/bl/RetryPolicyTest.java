@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.bl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.BatchUpdateException;
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Comprueba que {@link RetryPolicy} reconoce los errores transitorios de
+ * MySQL, que la espera entre intentos no pasa del maximo y que deja de
+ * reintentar al agotar los intentos o el presupuesto
+ *
+ * @author javier.vaquero
+ *
+ */
+public class RetryPolicyTest {
+
+	private final AtomicInteger llamadas = new AtomicInteger();
+
+	@Before
+	public void configurar() {
+		RetryPolicy.setMaxIntentos(RetryPolicy.MAX_INTENTOS_DEFECTO);
+		llenarPresupuesto();
+	}
+
+	@After
+	public void limpiar() {
+		RetryPolicy.setMaxIntentos(RetryPolicy.MAX_INTENTOS_DEFECTO);
+		llenarPresupuesto();
+	}
+
+	@Test
+	public void erroresTransitorios() {
+		assertTrue(RetryPolicy.isTransitorio(new SQLException("Serializacion", "40001")));
+		assertTrue(RetryPolicy.isTransitorio(new SQLTransactionRollbackException("Deadlock")));
+		// En las causas
+		SQLException interbloqueo = new SQLException("Deadlock found", "HY000", 1213);
+		assertTrue(RetryPolicy.isTransitorio(new Exception("Error al ejecutar SQL", new RuntimeException(interbloqueo))));
+		// En la cadena de getNextException de un lote
+		BatchUpdateException lote = new BatchUpdateException("Lote", "HY000", 0, new int[0]);
+		lote.setNextException(new SQLException("Lock wait timeout exceeded", "HY000", 1205));
+		assertTrue(RetryPolicy.isTransitorio(new Exception(lote)));
+	}
+
+	@Test
+	public void erroresNoTransitorios() {
+		assertFalse(RetryPolicy.isTransitorio(null));
+		assertFalse(RetryPolicy.isTransitorio(new RuntimeException("Error")));
+		assertFalse(RetryPolicy.isTransitorio(new SQLException("Duplicate entry", "23000", 1062)));
+		assertFalse(RetryPolicy.isTransitorio(new Exception(new SQLException("Table doesn't exist", "42S02", 1146))));
+	}
+
+	@Test
+	public void esperaDentroDelMaximo() {
+		for (int intento = 1; intento <= 40; intento++) {
+			long tope = Math.min(RetryPolicy.ESPERA_MAXIMA, RetryPolicy.ESPERA_BASE << Math.min(intento - 1, 20));
+			for (int i = 0; i < 200; i++) {
+				long espera = RetryPolicy.getEspera(intento);
+				assertTrue("Intento " + intento + ": " + espera, espera >= 0 && espera <= tope);
+			}
+		}
+	}
+
+	@Test
+	public void recuperaTrasErrorTransitorio() throws Exception {
+		long recuperadas = RetryPolicy.getRecuperadas();
+		String resultado = RetryPolicy.ejecutar(() -> {
+			if (llamadas.incrementAndGet() == 1) {
+				throw new SQLException("Deadlock found", "40001", 1213);
+			}
+			return "ok";
+		});
+		assertEquals("ok", resultado);
+		assertEquals(2, llamadas.get());
+		assertEquals(recuperadas + 1, RetryPolicy.getRecuperadas());
+	}
+
+	@Test
+	public void noReintentaErroresNoTransitorios() throws Exception {
+		SQLException error = new SQLException("Duplicate entry", "23000", 1062);
+		assertSame(error, fallar(error));
+		assertEquals(1, llamadas.get());
+	}
+
+	@Test
+	public void agotaLosIntentos() throws Exception {
+		RetryPolicy.setMaxIntentos(2);
+		long agotadas = RetryPolicy.getAgotadas();
+		fallar(new SQLException("Lock wait timeout exceeded", "HY000", 1205));
+		assertEquals(2, llamadas.get());
+		assertEquals(agotadas + 1, RetryPolicy.getAgotadas());
+	}
+
+	@Test
+	public void agotaElPresupuesto() throws Exception {
+		int reintentos = 0;
+		while (RetryPolicy.retirar()) {
+			reintentos++;
+		}
+		assertEquals(100, reintentos);
+		assertEquals(0, RetryPolicy.getPresupuesto());
+		long sinPresupuesto = RetryPolicy.getSinPresupuesto();
+		fallar(new SQLException("Deadlock found", "40001", 1213));
+		assertEquals(1, llamadas.get());
+		assertEquals(sinPresupuesto + 1, RetryPolicy.getSinPresupuesto());
+
+		// Cada operacion correcta recupera una decima de reintento
+		for (int i = 0; i < 10; i++) {
+			RetryPolicy.depositar();
+		}
+		assertEquals(1, RetryPolicy.getPresupuesto());
+		llamadas.set(0);
+		fallar(new SQLException("Deadlock found", "40001", 1213));
+		// Un reintento y se vuelve a quedar sin presupuesto
+		assertEquals(2, llamadas.get());
+	}
+
+	private Exception fallar(Exception error) {
+		try {
+			RetryPolicy.ejecutar(() -> {
+				llamadas.incrementAndGet();
+				throw error;
+			});
+		} catch (Exception e) {
+			return e;
+		}
+		fail("La operacion no ha fallado");
+		return null;
+	}
+
+	private static void llenarPresupuesto() {
+		// Cada reintento cuesta 10 depositos y caben 100
+		for (int i = 0; i < 1000; i++) {
+			RetryPolicy.depositar();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Comprueba que {@link BeanMapper} lee los NULL de SQL como
+ * <code>null</code> en las propiedades de tipo objeto y como el valor por
+ * defecto en las de tipo primitivo
+ *
+ * @author javier.vaquero
+ *
+ */
+public class BeanMapperTest {
+
+	@Test
+	public void nuloEnPropiedadesPrimitivas() throws Exception {
+		BeanMapper<BeanPrueba> mapper = BeanMapper.get(BeanPrueba.class,
+				Arrays.asList("cantidad", "precio", "activo", "porciones", "padre"));
+		BeanPrueba bean = mapper.read(crearResultadoNulo());
+		assertEquals(0L, bean.getId());
+		assertEquals(0, bean.getCantidad());
+		assertEquals(0.0, bean.getPrecio(), 0.0);
+		assertFalse(bean.isActivo());
+		assertEquals(0, bean.getPorciones());
+		assertNull(bean.getPadre());
+	}
+
+	/**
+	 * {@link ResultSet} con una tupla en la que todas las columnas son NULL
+	 */
+	private static ResultSet crearResultadoNulo() {
+		return (ResultSet) Proxy.newProxyInstance(BeanMapperTest.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "wasNull":
+						return true;
+					case "getLong":
+						return 0L;
+					case "getInt":
+						return 0;
+					case "getDouble":
+						return 0.0;
+					case "getBoolean":
+						return false;
+					default:
+						return null;
+					}
+				});
+	}
+
+	public static class BeanPrueba {
+		private long id;
+		private int cantidad;
+		private double precio;
+		private boolean activo;
+		private short porciones;
+		private Long padre;
+
+		public long getId() {
+			return id;
+		}
+
+		public void setId(long id) {
+			this.id = id;
+		}
+
+		public int getCantidad() {
+			return cantidad;
+		}
+
+		public void setCantidad(int cantidad) {
+			this.cantidad = cantidad;
+		}
+
+		public double getPrecio() {
+			return precio;
+		}
+
+		public void setPrecio(double precio) {
+			this.precio = precio;
+		}
+
+		public boolean isActivo() {
+			return activo;
+		}
+
+		public void setActivo(boolean activo) {
+			this.activo = activo;
+		}
+
+		public short getPorciones() {
+			return porciones;
+		}
+
+		public void setPorciones(short porciones) {
+			this.porciones = porciones;
+		}
+
+		public Long getPadre() {
+			return padre;
+		}
+
+		public void setPadre(Long padre) {
+			this.padre = padre;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Comprueba que {@link AbstractDAO#splitConcatFields(String, int)} deshace
+ * los valores que genera MySQL con
+ * {@link AbstractDAO#getConcatFields(List, String)}, aunque los datos
+ * contengan los separadores, y que detecta los valores cortados por
+ * <code>group_concat_max_len</code>
+ *
+ * @author javier.vaquero
+ *
+ */
+public class ConcatFieldsTest {
+
+	@Test
+	public void sinTuplas() throws Exception {
+		assertTrue(AbstractDAO.splitConcatFields(null, 2).isEmpty());
+		assertTrue(AbstractDAO.splitConcatFields("0", 2).isEmpty());
+	}
+
+	@Test
+	public void datosConSeparadores() throws Exception {
+		String valor = concatenar(new String[][] { { "1", "antes #@# dentro" }, { "2", "fin#|#" }, { "3", "#" } });
+		List<String[]> tuplas = AbstractDAO.splitConcatFields(valor, 2);
+		assertEquals(3, tuplas.size());
+		assertArrayEquals(new String[] { "1", "antes #@# dentro" }, tuplas.get(0));
+		assertArrayEquals(new String[] { "2", "fin#|#" }, tuplas.get(1));
+		assertArrayEquals(new String[] { "3", "#" }, tuplas.get(2));
+	}
+
+	@Test
+	public void camposNulosYVacios() throws Exception {
+		String valor = concatenar(new String[][] { { "1", null, "" }, { "2", "", null } });
+		List<String[]> tuplas = AbstractDAO.splitConcatFields(valor, 3);
+		assertArrayEquals(new String[] { "1", null, "" }, tuplas.get(0));
+		assertArrayEquals(new String[] { "2", "", null }, tuplas.get(1));
+	}
+
+	@Test
+	public void valorCortado() throws Exception {
+		String[][] pasos = new String[12][];
+		for (int i = 0; i < pasos.length; i++) {
+			pasos[i] = new String[] { String.valueOf(i + 1), "Paso numero " + (i + 1) + " de la receta #" };
+		}
+		String valor = concatenar(pasos);
+		String cuenta = pasos.length + AbstractDAO.SEPARADOR;
+		// MySQL solo corta la parte de GROUP_CONCAT, no el numero de tuplas
+		for (int longitud = cuenta.length(); longitud < valor.length(); longitud++) {
+			try {
+				AbstractDAO.splitConcatFields(valor.substring(0, longitud), 2);
+				fail("No se ha detectado el corte en " + longitud);
+			} catch (SQLException e) {
+				assertTrue(AbstractDAO.isConcatenacionCortada(new SQLException("Error al ejecutar SQL", e)));
+			}
+		}
+		assertEquals(pasos.length, AbstractDAO.splitConcatFields(valor, 2).size());
+	}
+
+	/**
+	 * Genera lo mismo que MySQL con la SQL de
+	 * {@link AbstractDAO#getConcatFields(List, String)}
+	 */
+	private static String concatenar(String[][] tuplas) {
+		StringBuilder valor = new StringBuilder().append(tuplas.length);
+		for (String[] tupla : tuplas) {
+			valor.append(AbstractDAO.SEPARADOR);
+			for (String campo : tupla) {
+				valor.append(campo == null ? "#0" : campo.replace("#", "##")).append(AbstractDAO.SEPARADOR_CAMPOS);
+			}
+		}
+		return valor.toString();
+	}
+}
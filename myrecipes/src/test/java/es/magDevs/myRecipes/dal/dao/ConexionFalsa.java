@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Conexion falsa para los tests, que guarda las SQL ejecutadas y devuelve
+ * resultados con {@link #tuplas} tuplas de valores vacios. Como Connector/J,
+ * rechaza las modificaciones si esta marcada como de solo lectura
+ *
+ * @author javier.vaquero
+ *
+ */
+class ConexionFalsa {
+	final List<String> sqls = new ArrayList<>();
+	boolean soloLectura = false;
+	boolean autoCommit = true;
+	// Tambien se marca a mano para simular que el servidor ha cortado la conexion
+	boolean cerrada = false;
+	int aislamiento = Connection.TRANSACTION_REPEATABLE_READ;
+	// Texto de las SQL que fallan al ejecutarlas
+	String fallo = null;
+	// Numero de tuplas de cada resultado
+	int tuplas = 0;
+
+	boolean contiene(String texto) {
+		for (String sql : sqls) {
+			if (sql.contains(texto)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	Connection crear() {
+		return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "setReadOnly":
+						soloLectura = (Boolean) args[0];
+						return null;
+					case "isReadOnly":
+						return soloLectura;
+					case "setAutoCommit":
+						autoCommit = (Boolean) args[0];
+						return null;
+					case "getAutoCommit":
+						return autoCommit;
+					case "setTransactionIsolation":
+						aislamiento = (Integer) args[0];
+						return null;
+					case "getTransactionIsolation":
+						return aislamiento;
+					case "close":
+						cerrada = true;
+						return null;
+					case "isClosed":
+						return cerrada;
+					case "isValid":
+						return !cerrada;
+					case "createStatement":
+						return crearSentencia(null);
+					case "prepareStatement":
+						return crearSentencia((String) args[0]);
+					case "equals":
+						return proxy == args[0];
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					default:
+						return porDefecto(method.getReturnType());
+					}
+				});
+	}
+
+	private Statement crearSentencia(String preparada) {
+		Class<?> tipo = preparada != null ? PreparedStatement.class : Statement.class;
+		int[] enLote = { 0 };
+		boolean[] cerrado = { false };
+		return (Statement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { tipo },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "execute":
+					case "executeQuery":
+					case "executeUpdate":
+						ejecutar(args != null && args.length > 0 ? (String) args[0] : preparada);
+						if (method.getName().equals("executeQuery")) {
+							return crearResultado();
+						}
+						return method.getName().equals("execute") ? false : 1;
+					case "addBatch":
+						enLote[0]++;
+						return null;
+					case "executeBatch":
+						ejecutar(preparada);
+						int[] resultados = new int[enLote[0]];
+						enLote[0] = 0;
+						return resultados;
+					case "close":
+						cerrado[0] = true;
+						return null;
+					case "isClosed":
+						return cerrado[0];
+					case "equals":
+						return proxy == args[0];
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					default:
+						return porDefecto(method.getReturnType());
+					}
+				});
+	}
+
+	private void ejecutar(String sql) throws SQLException {
+		if (cerrada) {
+			throw new SQLException("Communications link failure");
+		}
+		if (fallo != null && sql.contains(fallo)) {
+			throw new SQLException("Error simulado en " + sql);
+		}
+		// Igual que Connector/J, que solo deja lanzar consultas en una conexion de solo lectura
+		if (soloLectura && !sql.startsWith("SELECT")) {
+			throw new SQLException("Connection is read-only. Queries leading to data modification are not allowed");
+		}
+		sqls.add(sql);
+	}
+
+	private ResultSet crearResultado() {
+		int[] leidas = { 0 };
+		return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ResultSet.class },
+				(proxy, method, args) -> {
+					if (method.getName().equals("next")) {
+						return leidas[0]++ < tuplas;
+					}
+					return porDefecto(method.getReturnType());
+				});
+	}
+
+	private static Object porDefecto(Class<?> tipo) {
+		if (tipo == boolean.class) {
+			return false;
+		}
+		if (tipo == int.class) {
+			return 0;
+		}
+		if (tipo == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Comprueba que las conexiones del {@link ConnectionPool} cuya conexion fisica
+ * ha muerto devuelven su permiso al cerrarlas, tambien a traves de
+ * {@link DAOFactory#closeConnection()}, en lugar de agotar el pool
+ *
+ * @author javier.vaquero
+ *
+ */
+public class ConnectionPoolTest {
+
+	private static final String URL = "jdbc:myrecipes-prueba:pool";
+
+	private final List<ConexionFalsa> fisicas = new ArrayList<>();
+	private final Driver driver = new DriverPrueba();
+	private ConnectionPool pool;
+
+	@Before
+	public void crearPool() throws SQLException {
+		DriverManager.registerDriver(driver);
+		Properties propiedades = new Properties();
+		propiedades.setProperty("url", URL);
+		propiedades.setProperty("pool.minimo", "0");
+		propiedades.setProperty("pool.maximo", "1");
+		propiedades.setProperty("pool.espera", "100");
+		pool = new ConnectionPool(propiedades);
+	}
+
+	@After
+	public void cerrarPool() throws SQLException {
+		pool.cerrar();
+		DriverManager.deregisterDriver(driver);
+	}
+
+	@Test
+	public void conexionMuertaDevuelveElPermiso() throws Exception {
+		Connection con = pool.getConnection();
+		fisicas.get(0).cerrada = true;
+		assertFalse("El proxy sigue abierto hasta que se cierra", con.isClosed());
+		con.close();
+		assertEquals(0, pool.getEnUso());
+		assertEquals(0, pool.getAbiertas());
+		// Con maximo 1, si el permiso no se hubiera devuelto esto agotaria la espera
+		Connection nueva = pool.getConnection();
+		assertNotSame(fisicas.get(0), fisicas.get(1));
+		nueva.close();
+	}
+
+	@Test
+	public void factoriaCierraConexionMuerta() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			DAOFactory factory = new FactoriaPrueba(pool::getConnection);
+			factory.getConnection();
+			fisicas.get(i).cerrada = true;
+			factory.closeConnection();
+			assertEquals(0, pool.getEnUso());
+		}
+		assertEquals(3, fisicas.size());
+	}
+
+	/**
+	 * Driver que abre una {@link ConexionFalsa} por conexion
+	 */
+	private class DriverPrueba implements Driver {
+		@Override
+		public Connection connect(String url, Properties info) {
+			if (!acceptsURL(url)) {
+				return null;
+			}
+			ConexionFalsa fisica = new ConexionFalsa();
+			fisicas.add(fisica);
+			return fisica.crear();
+		}
+
+		@Override
+		public boolean acceptsURL(String url) {
+			return URL.equals(url);
+		}
+
+		@Override
+		public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+			return new DriverPropertyInfo[0];
+		}
+
+		@Override
+		public int getMajorVersion() {
+			return 1;
+		}
+
+		@Override
+		public int getMinorVersion() {
+			return 0;
+		}
+
+		@Override
+		public boolean jdbcCompliant() {
+			return false;
+		}
+
+		@Override
+		public Logger getParentLogger() {
+			return Logger.getGlobal();
+		}
+	}
+}
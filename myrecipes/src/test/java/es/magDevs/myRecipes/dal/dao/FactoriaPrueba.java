@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import java.sql.Connection;
+import java.util.concurrent.Callable;
+
+/**
+ * Factoria para los tests que obtiene sus conexiones de donde se le indique
+ * en lugar de JNDI
+ *
+ * @author javier.vaquero
+ *
+ */
+class FactoriaPrueba extends DAOFactory {
+	private final Callable<Connection> apertura;
+
+	FactoriaPrueba(Connection con) {
+		this(() -> con);
+	}
+
+	FactoriaPrueba(Callable<Connection> apertura) {
+		this.apertura = apertura;
+	}
+
+	@Override
+	protected Connection abrirConexion() throws Exception {
+		return apertura.call();
+	}
+
+	@Override
+	public RecetasDAO getRecetasDao() {
+		return null;
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Comprueba que una transaccion REQUIRES_NEW dentro de otra solo invalida en
+ * la {@link QueryCache} las tablas que ha modificado ella al terminar, y que
+ * las de la transaccion exterior se invalidan cuando esta termina
+ *
+ * @author javier.vaquero
+ *
+ */
+public class QueryCacheTransaccionTest {
+
+	@Before
+	public void activarCache() {
+		QueryCache.limpiar();
+		QueryCache.setActiva(true);
+	}
+
+	@After
+	public void limpiar() {
+		QueryCache.setActiva(false);
+		QueryCache.limpiar();
+		QueryCache.finTransaccion();
+		DAOFactory.transactionThread.remove();
+	}
+
+	@Test
+	public void requiresNewDentroDeRequired() throws Exception {
+		DAOFactory exterior = new FactoriaPrueba(new ConexionFalsa().crear());
+		assertTrue(exterior.beginTransaction());
+		new DAOPrueba(exterior.getConnection()).modificar("recetas");
+
+		DAOFactory interior = new FactoriaPrueba(new ConexionFalsa().crear());
+		assertTrue(interior.beginTransaction(Propagacion.REQUIRES_NEW));
+		new DAOPrueba(interior.getConnection()).modificar("tipos");
+		// Otro hilo lee las tablas mientras siguen abiertas las dos transacciones
+		List<Object> tipos = guardar("tipos");
+		List<Object> recetasDurante = guardar("recetas");
+		assertTrue(interior.commit());
+		interior.closeConnection();
+
+		assertNull("Los cambios de la transaccion interior ya estan confirmados", QueryCache.get(tipos));
+		assertNotNull("La transaccion exterior aun no ha terminado", QueryCache.get(recetasDurante));
+		// Lo que se lea ahora tampoco incluye los cambios de la exterior
+		List<Object> recetas = guardar("recetas");
+
+		assertTrue(exterior.commit());
+		exterior.closeConnection();
+		assertNull(QueryCache.get(recetas));
+		assertNull(QueryCache.get(recetasDurante));
+	}
+
+	private static List<Object> guardar(String tabla) {
+		List<Object> clave = QueryCache.getClave("SELECT * FROM " + tabla, Collections.emptyList());
+		QueryCache.put(clave, QueryCache.getVersion(Arrays.asList(tabla)), Collections.emptyList());
+		return clave;
+	}
+
+	private static class DAOPrueba extends AbstractDAO {
+		private DAOPrueba(Connection connection) {
+			super(connection);
+		}
+
+		private void modificar(String tabla) throws Exception {
+			runUpdate("UPDATE " + tabla + " SET descripcion=? WHERE id=?", Arrays.asList("prueba", 1L), null);
+		}
+	}
+}
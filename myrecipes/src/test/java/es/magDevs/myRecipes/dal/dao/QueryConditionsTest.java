@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Comprueba la SQL y los parametros que genera {@link QueryConditions}, y que
+ * las consultas con la misma forma reutilizan la SQL ya generada
+ *
+ * @author javier.vaquero
+ *
+ */
+public class QueryConditionsTest {
+
+	private static final String SELECT = "SELECT id,descripcion FROM recetas";
+
+	@Test
+	public void condicionesYParametros() {
+		QueryConditions condiciones = new QueryConditions()
+				.equal("id", 3L)
+				.equal("tipo", null)
+				.like("descripcion", " tarta ")
+				.distinct("foto", "")
+				.isNull("borrado");
+		assertEquals(SELECT + " WHERE id = ? AND UPPER(descripcion) LIKE ? AND borrado IS NULL", condiciones.getSql(SELECT));
+		assertEquals(Arrays.asList(3L, "%TARTA%"), condiciones.getParams());
+	}
+
+	@Test
+	public void mismaFormaReutilizaLaSql() {
+		String sql = new QueryConditions().equal("id", 1L).like("descripcion", "a").getSql(SELECT + " r");
+		int formas = QueryConditions.getNumFormas();
+		QueryConditions otra = new QueryConditions().equal("id", 2L).like("descripcion", "b");
+		assertSame(sql, otra.getSql(SELECT + " r"));
+		assertEquals(formas, QueryConditions.getNumFormas());
+		assertEquals(Arrays.asList(2L, "%B%"), otra.getParams());
+		// Otro operador u otro campo es otra forma
+		assertFalse(sql.equals(new QueryConditions().distinct("id", 1L).like("descripcion", "a").getSql(SELECT + " r")));
+		assertFalse(sql.equals(new QueryConditions().equal("tipo", 1L).like("descripcion", "a").getSql(SELECT + " r")));
+	}
+
+	@Test
+	public void ultimaOrdenacion() {
+		QueryConditions condiciones = new QueryConditions().orderBy("id").equal("id", 1L).orderBy("descripcion DESC");
+		assertTrue(condiciones.isOrdenada());
+		assertEquals(SELECT + " WHERE id = ? ORDER BY descripcion DESC", condiciones.getSql(SELECT));
+		assertFalse(new QueryConditions().isOrdenada());
+	}
+
+	@Test
+	public void inRelleno() {
+		QueryConditions condiciones = new QueryConditions().in("id", Arrays.asList(1L, 2L, 3L));
+		assertEquals(SELECT + " WHERE id IN (?,?,?,?)", condiciones.getSql(SELECT));
+		assertEquals(Arrays.asList(1L, 2L, 3L, 3L), condiciones.getParams());
+		// Listas de distinta longitud dentro del mismo tamaño comparten la SQL
+		String sql = condiciones.getSql(SELECT);
+		assertSame(sql, new QueryConditions().in("id", Arrays.asList(7L, 8L)).getSql(SELECT));
+		assertEquals(SELECT + " WHERE id NOT IN (?)", new QueryConditions().in(true, "id", Arrays.asList(5L)).getSql(SELECT));
+		QueryConditions vacia = new QueryConditions().in("id", Collections.emptyList());
+		assertEquals(SELECT, vacia.getSql(SELECT));
+		assertTrue(vacia.getParams().isEmpty());
+	}
+
+	@Test
+	public void sqlSinOrden() {
+		QueryConditions condiciones = new QueryConditions().equal("id", 1L).orderBy("descripcion").limit(20, 10);
+		String count = "SELECT COUNT(*) FROM recetas";
+		assertEquals(count + " WHERE id = ? LIMIT ? OFFSET ?", condiciones.getSqlSinOrden(count));
+		assertEquals(SELECT + " WHERE id = ? ORDER BY descripcion LIMIT ? OFFSET ?", condiciones.getSql(SELECT));
+		// Con el mismo prefijo, con y sin orden son formas distintas
+		assertEquals(count + " WHERE id = ? ORDER BY descripcion LIMIT ? OFFSET ?", condiciones.getSql(count));
+		assertEquals(Arrays.asList(1L, 10, 20), condiciones.getParams());
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Comprueba que las consultas con mas de
+ * {@link AbstractDAO#UMBRAL_TABLA_TEMPORAL} IDs funcionan en transacciones de
+ * solo lectura y en conexiones de solo lectura (replicas), y que las
+ * transacciones de solo lectura dejan la conexion como estaba, con una
+ * {@link ConexionFalsa}.
+ *
+ * @author javier.vaquero
+ *
+ */
+public class ReadOnlyInTest {
+
+	private static final int NUM_IDS = AbstractDAO.UMBRAL_TABLA_TEMPORAL + 1000;
+
+	private ConexionFalsa conexion;
+	private Connection con;
+
+	@Before
+	public void crearConexion() {
+		conexion = new ConexionFalsa();
+		con = conexion.crear();
+	}
+
+	@After
+	public void limpiar() {
+		DAOFactory.transactionThread.remove();
+	}
+
+	@Test
+	public void masDelUmbralEnTransaccionSoloLectura() throws Exception {
+		DAOFactory factory = new FactoriaPrueba(con);
+		assertTrue(factory.beginReadOnlyTransaction());
+		try {
+			assertFalse("La conexion no se debe marcar como de solo lectura", conexion.soloLectura);
+			new DAOPrueba(factory.getConnection()).getByIds(getIds());
+			assertTrue(factory.commit());
+		} finally {
+			factory.closeConnection();
+		}
+		assertTrue(conexion.contiene("START TRANSACTION WITH CONSISTENT SNAPSHOT, READ ONLY"));
+		assertTrue(conexion.contiene("CREATE TEMPORARY TABLE"));
+	}
+
+	@Test
+	public void masDelUmbralEnConexionSoloLectura() throws Exception {
+		con.setReadOnly(true);
+		new DAOPrueba(con).getByIds(getIds());
+		assertFalse(conexion.contiene("TEMPORARY"));
+		int maximo = AbstractDAO.TAMANOS_IN[AbstractDAO.TAMANOS_IN.length - 1];
+		assertEquals((NUM_IDS + maximo - 1) / maximo, conexion.sqls.size());
+		for (String sql : conexion.sqls) {
+			assertTrue(sql, sql.startsWith("SELECT") && sql.contains(" IN ("));
+		}
+	}
+
+	@Test
+	public void transaccionSoloLecturaRestauraLaConexion() throws Exception {
+		conexion.aislamiento = Connection.TRANSACTION_READ_COMMITTED;
+		DAOFactory factory = new FactoriaPrueba(con);
+		assertTrue(factory.beginReadOnlyTransaction());
+		assertEquals(Connection.TRANSACTION_REPEATABLE_READ, conexion.aislamiento);
+		assertFalse(conexion.autoCommit);
+		assertTrue(factory.commit());
+		factory.closeConnection();
+		assertEquals(Connection.TRANSACTION_READ_COMMITTED, conexion.aislamiento);
+		assertTrue(conexion.autoCommit);
+	}
+
+	@Test
+	public void errorAlIniciarTransaccionSoloLecturaRestauraLaConexion() throws Exception {
+		conexion.aislamiento = Connection.TRANSACTION_READ_COMMITTED;
+		conexion.fallo = "START TRANSACTION";
+		DAOFactory factory = new FactoriaPrueba(con);
+		assertFalse(factory.beginReadOnlyTransaction());
+		assertFalse(factory.isTransaction());
+		factory.closeConnection();
+		assertEquals(Connection.TRANSACTION_READ_COMMITTED, conexion.aislamiento);
+		assertTrue(conexion.autoCommit);
+		assertFalse(conexion.soloLectura);
+	}
+
+	private static List<Long> getIds() {
+		List<Long> ids = new ArrayList<>();
+		for (long id = 1; id <= NUM_IDS; id++) {
+			ids.add(id);
+		}
+		return ids;
+	}
+
+	private static class DAOPrueba extends AbstractDAO {
+		private DAOPrueba(Connection connection) {
+			super(connection);
+		}
+
+		private List<Long> getByIds(Collection<Long> ids) throws Exception {
+			return runSelectIn("SELECT id FROM recetas", "id", ids, rs -> rs.getLong(1));
+		}
+	}
+}
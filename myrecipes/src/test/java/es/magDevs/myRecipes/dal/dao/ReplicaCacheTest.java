@@ -0,0 +1,145 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.spi.InitialContextFactory;
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Comprueba que lo leido de una replica no se guarda en la
+ * {@link QueryCache}, y que lo leido de la principal si. La replica se
+ * obtiene de un contexto JNDI falso
+ *
+ * @author javier.vaquero
+ *
+ */
+public class ReplicaCacheTest {
+
+	private static final String REPLICA = "replicaPrueba";
+
+	// Conexion que entrega el datasource de la replica
+	private static ConexionFalsa replica;
+
+	private ConexionFalsa principal;
+
+	@Before
+	public void configurar() {
+		replica = new ConexionFalsa();
+		principal = new ConexionFalsa();
+		System.setProperty(Context.INITIAL_CONTEXT_FACTORY, ContextoPrueba.class.getName());
+		ReplicaRouter.setReplicas(REPLICA);
+		// Sin escrituras recientes de la sesion, que mandarian las lecturas a la principal
+		ReplicaRouter.setSesion("replica-cache-" + System.nanoTime());
+		QueryCache.limpiar();
+		QueryCache.setActiva(true);
+	}
+
+	@After
+	public void limpiar() {
+		QueryCache.setActiva(false);
+		QueryCache.limpiar();
+		ReplicaRouter.setSesion(null);
+		ReplicaRouter.setReplicas(ReplicaRouter.REPLICAS_DEFECTO);
+		System.clearProperty(Context.INITIAL_CONTEXT_FACTORY);
+	}
+
+	@Test
+	public void lecturaDeReplicaNoSeGuarda() throws Exception {
+		DAOFactory factory = new FactoriaPrueba(principal.crear());
+		factory.setLectura(true);
+		Connection con = factory.getConnection();
+		try {
+			assertTrue(ReplicaRouter.isReplica(con));
+			new DAOPrueba(con).leer();
+			new DAOPrueba(con).leer();
+		} finally {
+			factory.closeConnection();
+		}
+		assertEquals(0, QueryCache.getTamano());
+		assertEquals(2, replica.sqls.size());
+		assertTrue(principal.sqls.isEmpty());
+		assertFalse("Al cerrarla deja de constar como replica", ReplicaRouter.isReplica(con));
+	}
+
+	@Test
+	public void lecturaDePrincipalSeGuarda() throws Exception {
+		DAOFactory factory = new FactoriaPrueba(principal.crear());
+		Connection con = factory.getConnection();
+		try {
+			assertFalse(ReplicaRouter.isReplica(con));
+			new DAOPrueba(con).leer();
+			new DAOPrueba(con).leer();
+		} finally {
+			factory.closeConnection();
+		}
+		assertEquals(1, QueryCache.getTamano());
+		assertEquals(1, principal.sqls.size());
+		assertTrue(replica.sqls.isEmpty());
+	}
+
+	private static class DAOPrueba extends AbstractDAO {
+		private DAOPrueba(Connection connection) {
+			super(connection);
+		}
+
+		private List<Long> leer() throws Exception {
+			return runCachedSelect("SELECT id FROM recetas", Collections.emptyList(), Arrays.asList("recetas"),
+					rs -> rs.getLong(1), id -> id);
+		}
+	}
+
+	/**
+	 * Contexto JNDI con el datasource de la replica, que {@link ReplicaRouter}
+	 * busca en java:comp/env
+	 */
+	public static class ContextoPrueba implements InitialContextFactory {
+		@Override
+		public Context getInitialContext(Hashtable<?, ?> environment) {
+			return (Context) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Context.class },
+					(proxy, method, args) -> {
+						if (!method.getName().equals("lookup")) {
+							return null;
+						}
+						String nombre = String.valueOf(args[0]);
+						if (nombre.equals("java:comp/env")) {
+							return proxy;
+						}
+						if (nombre.equals("jdbc/" + REPLICA)) {
+							return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DataSource.class },
+									(ds, metodo, argumentos) -> metodo.getName().equals("getConnection") ? replica.crear() : null);
+						}
+						throw new NameNotFoundException(nombre);
+					});
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Comprueba que {@link SqlStatistics#normalizar(String)} agrupa las listas de
+ * parametros de cualquier longitud, tambien las muy largas, que con una
+ * expresion regular recursiva desbordaban la pila
+ *
+ * @author javier.vaquero
+ *
+ */
+public class SqlStatisticsTest {
+
+	private static final String SELECT = "SELECT id FROM recetas WHERE id IN ";
+
+	@After
+	public void limpiar() {
+		SqlStatistics.reset();
+	}
+
+	@Test
+	public void listasCortas() {
+		assertEquals(SELECT + "(?...)", SqlStatistics.normalizar(SELECT + "(?, ?)"));
+		assertEquals(SELECT + "(?...)", SqlStatistics.normalizar(SELECT + "( ?,?,? )"));
+		assertEquals("SELECT id FROM recetas WHERE id = ?", SqlStatistics.normalizar("SELECT id FROM recetas\n\tWHERE id = ?"));
+		assertEquals("INSERT INTO tipos (id, descripcion) VALUES (?...)",
+				SqlStatistics.normalizar("INSERT INTO tipos (id, descripcion) VALUES (?, ?)"));
+	}
+
+	@Test
+	public void listaDeCienMilParametros() {
+		String sql = SELECT + lista(100000);
+		assertEquals(SELECT + "(?...)", SqlStatistics.normalizar(sql));
+	}
+
+	@Test
+	public void listasDeDistintaLongitudSeAgrupan() {
+		SqlStatistics.registrar(SELECT + lista(1000), 1000, 1, false);
+		SqlStatistics.registrar(SELECT + lista(100000), 1000, 1, false);
+		assertEquals(1, SqlStatistics.getEstadisticas().size());
+		assertEquals(2, SqlStatistics.getEstadisticas().get(0).getLlamadas());
+	}
+
+	private static String lista(int parametros) {
+		return "(" + String.join(", ", Collections.nCopies(parametros, "?")) + ")";
+	}
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2014-2020, Javier Vaquero
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * required by applicable law or agreed to in writing, software
+ * under the License is distributed on an "AS IS" BASIS,
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * the License for the specific language governing permissions and
+ * under the License.
+ */
+package es.magDevs.myRecipes.dal.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Comprueba que en las consultas que procesan el resultado tupla a tupla el
+ * tiempo del consumidor cuenta en {@link SqlStatistics} pero no hace que la
+ * consulta se registre en {@link SlowQueryLog}
+ *
+ * @author javier.vaquero
+ *
+ */
+public class StreamingSelectTest {
+
+	private static final String SQL = "SELECT id FROM recetas";
+	private static final long UMBRAL = 50;
+
+	@Before
+	public void configurar() throws Exception {
+		// La primera consulta carga las clases del DAO, que no se debe medir
+		new DAOPrueba(new ConexionFalsa().crear()).recorrer(id -> {
+		});
+		SqlStatistics.reset();
+		SlowQueryLog.reset();
+		SlowQueryLog.setUmbral(UMBRAL);
+	}
+
+	@After
+	public void limpiar() {
+		SlowQueryLog.setUmbral(SlowQueryLog.UMBRAL_DEFECTO);
+		SlowQueryLog.reset();
+		SqlStatistics.reset();
+	}
+
+	@Test
+	public void consumidorLentoNoEsConsultaLenta() throws Exception {
+		ConexionFalsa conexion = new ConexionFalsa();
+		conexion.tuplas = 3;
+		int procesadas = new DAOPrueba(conexion.crear()).recorrer(id -> Thread.sleep(UMBRAL));
+		assertEquals(3, procesadas);
+		assertEquals(0, SlowQueryLog.getNumConsultasLentas());
+		SqlStatistics.Estadistica estadistica = SqlStatistics.getEstadisticas().get(0);
+		assertEquals(SQL, estadistica.getSql());
+		assertTrue("El tiempo total incluye el consumidor", estadistica.getTiempoTotal() >= 3 * UMBRAL);
+	}
+
+	private static class DAOPrueba extends AbstractDAO {
+		private DAOPrueba(Connection connection) {
+			super(connection);
+		}
+
+		private int recorrer(RowConsumer<Long> consumidor) throws Exception {
+			return runSelect(SQL, Collections.emptyList(), rs -> rs.getLong(1), consumidor);
+		}
+	}
+}